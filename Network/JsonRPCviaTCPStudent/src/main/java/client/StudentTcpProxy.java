@@ -1,12 +1,25 @@
 package client;
 
+import server.Framing;
 import server.Student;
 import server.StudentCollection;
 import java.net.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import org.json.JSONTokener;
 
 /**
  * A class for client-server connections with a threaded server.
@@ -14,6 +27,9 @@ import org.json.JSONArray;
  * by marshalling/unmarshalling parameters and results and using a TCP
  * connection to request the method be executed on the server.
  * Byte arrays are used for communication to support multiple langs.
+ * Calls share a small pool of persistent connections and are matched to
+ * their responses by the JSON-RPC id. Calls made through a Batch are sent
+ * together as one jsonrpc batch.
  *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
@@ -21,10 +37,21 @@ import org.json.JSONArray;
 public class StudentTcpProxy extends Object implements StudentCollection {
 
    private static final boolean debugOn = false;
-   private static final int buffSize = 4096;
-   private static int id = 0;
+   /** number of persistent connections calls are spread over */
+   private static final int poolSize = 2;
+   /** longest a call waits for its response */
+   private static final long callTimeoutMillis = 30000;
+   private static final AtomicInteger id = new AtomicInteger();
    private String host;
    private int port;
+   private final Connection[] pool = new Connection[poolSize];
+   private final AtomicInteger next = new AtomicInteger();
+   /** how long the server has to answer the framing preamble */
+   private static final int handshakeMillis = 5000;
+   /** cleared once the server turns out not to know frames */
+   private volatile boolean useFrames = true;
+   /** flushes batches whose time is up */
+   private static final Timer batchTimer = new Timer("proxy-batch", true);
    
    public StudentTcpProxy (String host, int port){
       this.host = host;
@@ -37,54 +64,403 @@ public class StudentTcpProxy extends Object implements StudentCollection {
    }
 
    /**
-    * Generic method caller using TCP
+    * A persistent connection to the server. Calls from any thread write their
+    * request and wait. A reader thread takes the responses off the stream and
+    * hands each one to the call with the same id, so many calls can be in
+    * flight on one connection and their answers may come in any order.
+    * Messages go as length prefixed frames (see server.Framing) if the server
+    * answers the preamble, as plain json otherwise.
+    */
+   private class Connection implements Runnable {
+      private Socket sock;
+      private OutputStream os;
+      private InputStream is;
+      private final boolean framed;
+      private DataInputStream frames;
+      private JSONTokener responses;
+      private final Map<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+      /** ids of each message sent, in the order the server answers them */
+      private final Queue<List<Integer>> unanswered = new ConcurrentLinkedQueue<>();
+      private volatile boolean open = true;
+
+      Connection() throws IOException {
+         boolean framed = useFrames;
+         connect();
+         if (framed && !negotiate()) {
+            debug("server does not know frames, using plain json");
+            useFrames = framed = false;
+            sock.close();
+            connect();
+         }
+         this.framed = framed;
+         if (framed) {
+            frames = new DataInputStream(is);
+         } else {
+            responses = new JSONTokener(new InputStreamReader(is, "UTF-8"));
+         }
+         Thread reader = new Thread(this, "proxy-reader");
+         reader.setDaemon(true);
+         reader.start();
+      }
+
+      private void connect() throws IOException {
+         sock = new Socket(host, port);
+         sock.setTcpNoDelay(true);
+         os = new BufferedOutputStream(sock.getOutputStream());
+         is = new BufferedInputStream(sock.getInputStream());
+      }
+
+      /**
+       * Asks for frames
+       * @return true if the server answered with the preamble
+       */
+      private boolean negotiate() throws IOException {
+         os.write(Framing.PREAMBLE);
+         os.flush();
+         sock.setSoTimeout(handshakeMillis);
+         try {
+            return Framing.readPreamble(is);
+         } catch (SocketTimeoutException ex) {
+            return false;
+         } finally {
+            sock.setSoTimeout(0);
+         }
+      }
+
+      /**
+       * Sends a request
+       * @return the response, once it arrives
+       */
+      CompletableFuture<String> send(int callId, String request) throws IOException {
+         CompletableFuture<String> response = new CompletableFuture<>();
+         send(Collections.singletonList(callId), Collections.singletonList(response), request);
+         return response;
+      }
+
+      /**
+       * Sends a request or a batch of them
+       * @param callIds the ids of the calls in the request
+       * @param responses completed with the response to the call of the same index
+       */
+      void send(List<Integer> callIds, List<CompletableFuture<String>> responses,
+                String request) throws IOException {
+         for (int i=0; i<callIds.size(); i++){
+            pending.put(callIds.get(i), responses.get(i));
+         }
+         byte bytesToSend[] = request.getBytes("UTF-8");
+         try {
+            synchronized (os) {
+               unanswered.add(callIds);
+               if (framed) {
+                  Framing.write(os, request);
+               } else {
+                  os.write(bytesToSend,0,bytesToSend.length);
+               }
+               os.flush();
+            }
+         } catch (IOException ex) {
+            for (Integer callId : callIds) {
+               pending.remove(callId);
+            }
+            close(ex);
+            throw ex;
+         }
+         if (!open) {
+            // the reader gave up while we wrote, nobody will answer
+            for (CompletableFuture<String> response : responses) {
+               response.completeExceptionally(new IOException("connection closed"));
+            }
+         }
+      }
+
+      public void run() {
+         try {
+            Object response;
+            while ((response = nextResponse()) != null) {
+               if (response instanceof JSONArray) {
+                  // the responses to a batch
+                  JSONArray batch = (JSONArray) response;
+                  for (int i=0; i<batch.length(); i++){
+                     deliver(batch.optJSONObject(i));
+                  }
+               } else if (((JSONObject) response).opt("id") instanceof Number) {
+                  deliver((JSONObject) response);
+               } else {
+                  failOldest((JSONObject) response);
+               }
+               forgetAnswered();
+            }
+            close(new IOException("connection closed by the server"));
+         } catch (Exception ex) {
+            close(ex);
+         }
+      }
+
+      /**
+       * Hands a response to the call with its id
+       */
+      private void deliver(JSONObject response) {
+         CompletableFuture<String> call =
+            response == null ? null : pending.remove(response.optInt("id", -1));
+         if (call != null) {
+            call.complete(response.toString());
+         } else {
+            debug("response nobody waits for: "+response);
+         }
+      }
+
+      /**
+       * A response without an id (e.g. {} when the server could not parse the
+       * request) answers the oldest message still waiting, the server answers
+       * in order. Its calls fail right away instead of waiting for the timeout.
+       */
+      private void failOldest(JSONObject response) {
+         synchronized (unanswered) {
+            List<Integer> oldest;
+            while ((oldest = unanswered.poll()) != null) {
+               boolean failed = false;
+               for (Integer callId : oldest) {
+                  CompletableFuture<String> call = pending.remove(callId);
+                  if (call != null) {
+                     call.completeExceptionally(new IOException("no answer to the call: "+response));
+                     failed = true;
+                  }
+               }
+               if (failed) {
+                  return;
+               }
+            }
+         }
+         debug("response nobody waits for: "+response);
+      }
+
+      /**
+       * Drops the messages at the head of unanswered whose calls are all done
+       */
+      private void forgetAnswered() {
+         synchronized (unanswered) {
+            List<Integer> oldest;
+            while ((oldest = unanswered.peek()) != null) {
+               for (Integer callId : oldest) {
+                  if (pending.containsKey(callId)) {
+                     return;
+                  }
+               }
+               unanswered.poll();
+            }
+         }
+      }
+
+      /**
+       * Stops waiting for a call, e.g. after its timeout
+       */
+      void forget(int callId) {
+         if (pending.remove(callId) != null) {
+            forgetAnswered();
+         }
+      }
+
+      /**
+       * @return the next response, a JSONObject or for a batch a JSONArray,
+       *         null once the server closed the connection
+       */
+      private Object nextResponse() throws IOException {
+         if (framed) {
+            String frame = Framing.read(frames);
+            return frame == null ? null : new JSONTokener(frame).nextValue();
+         }
+         if (responses.nextClean() == 0) {
+            return null;
+         }
+         responses.back();
+         return responses.nextValue();
+      }
+
+      /**
+       * Closes the connection, calls still waiting fail
+       */
+      void close(Exception reason) {
+         open = false;
+         try {
+            sock.close();
+         } catch (IOException ignored) {
+         }
+         unanswered.clear();
+         for (Integer callId : pending.keySet()) {
+            CompletableFuture<String> call = pending.remove(callId);
+            if (call != null) {
+               call.completeExceptionally(reason);
+            }
+         }
+      }
+   }
+
+   /**
+    * One of the pooled connections, round robin. A connection that was closed
+    * is replaced by a new one.
+    */
+   private Connection connection() throws IOException {
+      int slot = Math.floorMod(next.getAndIncrement(), poolSize);
+      synchronized (pool) {
+         if (pool[slot] == null || !pool[slot].open) {
+            pool[slot] = new Connection();
+         }
+         return pool[slot];
+      }
+   }
+
+   /**
+    * Closes the pooled connections
+    */
+   public void close() {
+      synchronized (pool) {
+         for (int i = 0; i < poolSize; i++) {
+            if (pool[i] != null) {
+               pool[i].close(new IOException("proxy closed"));
+               pool[i] = null;
+            }
+         }
+      }
+   }
+
+   /**
+    * Generic method caller using TCP. The call goes out on one of the pooled
+    * connections, tagged with its own id, and waits for the response with
+    * that id.
     * @param method
     * @param params
     * @return
     */
    public String callMethod(String method, Object[] params){
-      // create JSON RPC message
-      JSONObject theCall = new JSONObject();
       String ret = "{}";
       try{
+         int callId = id.incrementAndGet();
+         JSONObject theCall = newCall(callId, method, params);
          debug("Request is: "+theCall.toString());
-         theCall.put("method",method);
-         theCall.put("id",id);
-         theCall.put("jsonrpc","2.0");
-         ArrayList<Object> al = new ArrayList();
-         for (int i=0; i<params.length; i++){
-            al.add(params[i]);
-         }
-         JSONArray paramsJson = new JSONArray(al);
-         theCall.put("params",paramsJson);
-
-         // prep connection and the byte array
-         Socket sock = new Socket(host,port);
-         OutputStream os = sock.getOutputStream();
-         InputStream is = sock.getInputStream();
-         int numBytesReceived;
-         int bufLen = 1024;
-         String strToSend = theCall.toString();
-         byte bytesReceived[] = new byte[buffSize];
-         byte bytesToSend[] = strToSend.getBytes();
-
-         // send the message
-         os.write(bytesToSend,0,bytesToSend.length);
-         // get response
-         numBytesReceived = is.read(bytesReceived,0,bufLen);
-         ret = new String(bytesReceived,0,numBytesReceived);
+
+         // send the message and wait for the response with our id
+         Connection conn = connection();
+         try {
+            ret = conn.send(callId, theCall.toString())
+                  .get(callTimeoutMillis, TimeUnit.MILLISECONDS);
+         } finally {
+            conn.forget(callId);
+         }
          
          // return
          debug("callMethod received from server: "+ret);
-         os.close();
-         is.close();
-         sock.close();
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
       }
       return ret;
    }
 
+   /**
+    * Creates a JSON RPC message
+    */
+   private JSONObject newCall(int callId, String method, Object[] params){
+      JSONObject theCall = new JSONObject();
+      theCall.put("method",method);
+      theCall.put("id",callId);
+      theCall.put("jsonrpc","2.0");
+      ArrayList<Object> al = new ArrayList();
+      for (int i=0; i<params.length; i++){
+         al.add(params[i]);
+      }
+      JSONArray paramsJson = new JSONArray(al);
+      theCall.put("params",paramsJson);
+      return theCall;
+   }
+
+   /**
+    * Creates a batch, for many calls without a round trip each
+    * @param maxCalls the batch is sent once this many calls are buffered
+    * @param maxDelayMillis or this long after the first of them was buffered
+    */
+   public Batch batch(int maxCalls, long maxDelayMillis){
+      return new Batch(maxCalls, maxDelayMillis);
+   }
+
+   /**
+    * Buffers calls and sends them as one jsonrpc batch (an array of calls),
+    * which the server answers with one array of responses. The calls return
+    * right away, their results arrive in the futures once the batch is
+    * answered. A batch goes out when maxCalls are buffered, maxDelayMillis
+    * after its first call, or on flush.
+    * Bulk loading students with add this way takes one round trip per
+    * maxCalls students instead of one per student.
+    */
+   public class Batch {
+      private final int maxCalls;
+      private final long maxDelayMillis;
+      private JSONArray calls = new JSONArray();
+      private List<Integer> callIds = new ArrayList<>();
+      private List<CompletableFuture<String>> results = new ArrayList<>();
+      private TimerTask flushLater;
+
+      private Batch(int maxCalls, long maxDelayMillis){
+         this.maxCalls = Math.max(1, maxCalls);
+         this.maxDelayMillis = maxDelayMillis;
+      }
+
+      /**
+       * Buffers a call
+       * @return the response, as callMethod would return it
+       */
+      public synchronized CompletableFuture<String> call(String method, Object[] params){
+         int callId = id.incrementAndGet();
+         CompletableFuture<String> result = new CompletableFuture<>();
+         calls.put(newCall(callId, method, params));
+         callIds.add(callId);
+         results.add(result);
+         if (calls.length() >= maxCalls) {
+            flush();
+         } else if (flushLater == null) {
+            flushLater = new TimerTask() {
+               public void run() {
+                  flush();
+               }
+            };
+            batchTimer.schedule(flushLater, maxDelayMillis);
+         }
+         return result;
+      }
+
+      /**
+       * Buffers an add
+       * @return whether the student was added
+       */
+      public CompletableFuture<Boolean> add(Student stud){
+         return call("add", new Object[]{stud.toJson()})
+            .thenApply(result -> new JSONObject(result).optBoolean("result",false));
+      }
+
+      /**
+       * Sends the buffered calls
+       */
+      public synchronized void flush(){
+         if (flushLater != null) {
+            flushLater.cancel();
+            flushLater = null;
+         }
+         if (callIds.isEmpty()) {
+            return;
+         }
+         debug("Sending batch of "+callIds.size()+" calls");
+         try{
+            connection().send(callIds, results, calls.toString());
+         }catch(Exception ex){
+            System.out.println("exception in flush: "+ex.getMessage());
+            for (CompletableFuture<String> result : results) {
+               result.completeExceptionally(ex);
+            }
+         }
+         calls = new JSONArray();
+         callIds = new ArrayList<>();
+         results = new ArrayList<>();
+      }
+   }
+
    public boolean saveToJsonFile() {
       boolean ret = false;
       String result = callMethod("saveToJsonFile", new Object[]{});
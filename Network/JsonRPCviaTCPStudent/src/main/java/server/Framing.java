@@ -0,0 +1,114 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Length prefixed frames for jsonrpc messages.
+ * Each message is sent as a 4 byte big endian length followed by that many
+ * bytes of UTF-8 encoded json. The receiver knows how much to read before it
+ * starts, however TCP splits the bytes, so messages of several megabytes
+ * arrive whole.
+ * A client asks for frames by sending the PREAMBLE as the first bytes on a
+ * connection, and the server answers with the same bytes. A client that starts
+ * with a json request instead (a '{') is served the way it always was, so old
+ * clients keep working.
+ * Frames are read into buffers from a pool, so a connection does not allocate
+ * a new array for every message.
+ */
+public class Framing extends Object {
+
+   /** first bytes of a connection that uses frames, and the server's answer */
+   public static final byte[] PREAMBLE = {'J','R','P','F'};
+   /** the largest message accepted, anything longer is a broken stream */
+   public static final int maxFrame = 64 * 1024 * 1024;
+   /** buffers of up to this size are pooled, larger ones are left to the gc */
+   private static final int maxPooled = 1024 * 1024;
+   private static final int minPooled = 1024;
+   /** buffers kept per size */
+   private static final int perSize = 8;
+
+   /** pool of buffers, one queue per power of two from minPooled to maxPooled */
+   private static final ConcurrentLinkedQueue<byte[]>[] pool = newPool();
+
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   private static ConcurrentLinkedQueue<byte[]>[] newPool() {
+      int sizes = Integer.numberOfTrailingZeros(maxPooled / minPooled) + 1;
+      ConcurrentLinkedQueue<byte[]>[] queues = new ConcurrentLinkedQueue[sizes];
+      for (int i=0; i<sizes; i++){
+         queues[i] = new ConcurrentLinkedQueue<byte[]>();
+      }
+      return queues;
+   }
+
+   /**
+    * Reads as many bytes as the preamble has
+    * @return true if they are the preamble
+    */
+   public static boolean readPreamble(InputStream in) throws IOException {
+      byte got[] = new byte[PREAMBLE.length];
+      for (int i=0; i<got.length; i++){
+         int b = in.read();
+         if (b < 0) return false;
+         got[i] = (byte)b;
+      }
+      return Arrays.equals(got, PREAMBLE);
+   }
+
+   /**
+    * Reads one frame
+    * @return the message, null if the stream ended before the frame started
+    */
+   public static String read(DataInputStream in) throws IOException {
+      int length;
+      try {
+         length = in.readInt();
+      } catch (EOFException e) {
+         return null;
+      }
+      if (length < 0 || length > maxFrame) {
+         throw new IOException("bad frame length "+length);
+      }
+      byte buffer[] = take(length);
+      try {
+         in.readFully(buffer, 0, length);
+         return new String(buffer, 0, length, StandardCharsets.UTF_8);
+      } finally {
+         give(buffer);
+      }
+   }
+
+   /**
+    * Writes one frame, the caller flushes
+    */
+   public static void write(OutputStream out, String message) throws IOException {
+      byte bytes[] = message.getBytes(StandardCharsets.UTF_8);
+      out.write(new byte[] {(byte)(bytes.length >>> 24), (byte)(bytes.length >>> 16),
+                            (byte)(bytes.length >>> 8), (byte)bytes.length});
+      out.write(bytes, 0, bytes.length);
+   }
+
+   /** index of the pooled size that holds length bytes, -1 if too large */
+   private static int sizeIndex(int length) {
+      if (length > maxPooled) return -1;
+      int size = Math.max(minPooled, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+      return Integer.numberOfTrailingZeros(size / minPooled);
+   }
+
+   private static byte[] take(int length) {
+      int index = sizeIndex(length);
+      if (index < 0) return new byte[length];
+      byte buffer[] = pool[index].poll();
+      return buffer != null ? buffer : new byte[minPooled << index];
+   }
+
+   private static void give(byte[] buffer) {
+      int index = sizeIndex(buffer.length);
+      // size() walks the queue, but it holds at most perSize buffers
+      if (index >= 0 && buffer.length == (minPooled << index) && pool[index].size() < perSize) {
+         pool[index].offer(buffer);
+      }
+   }
+}
@@ -3,6 +3,7 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.stream.IntStream;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
@@ -12,6 +13,8 @@ import org.json.JSONArray;
  * When a client request arrives, which should be a JsonRPC request, a new
  * thread is created to service the call and create the appropriate response.
  * Byte arrays are used for communication to support multiple langs.
+ * A request may also be a jsonrpc 2.0 batch, an array of calls, which is
+ * answered with one array of their responses.
  *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
@@ -19,10 +22,20 @@ import org.json.JSONArray;
 public class StudentCollectionSkeleton extends Object {
 
    private static final boolean debugOn = false;
+   /** methods that do not change the collection, they may run in parallel */
+   private static final Set<String> readOnly =
+      new HashSet<String>(Arrays.asList("get", "getNames", "getNameById"));
    StudentCollection studLib;
+   /** whether read only calls of a batch run in parallel */
+   private boolean parallelReads;
 
    public StudentCollectionSkeleton (StudentCollection studLib){
+      this(studLib, true);
+   }
+
+   public StudentCollectionSkeleton (StudentCollection studLib, boolean parallelReads){
       this.studLib = studLib;
+      this.parallelReads = parallelReads;
    }
 
    private void debug(String message) {
@@ -31,9 +44,85 @@ public class StudentCollectionSkeleton extends Object {
    }
 
    public String callMethod(String request){
+      if (request.trim().startsWith("[")) {
+         return callBatch(request);
+      }
+      try{
+         return call(new JSONObject(request)).toString();
+      }catch(Exception ex){
+         System.out.println("exception in callMethod: "+ex.getMessage());
+      }
+      return new JSONObject().toString();
+   }
+
+   /**
+    * Calls every method of a batch and answers with the array of the results,
+    * in the order of the calls. Calls that change the collection run one after
+    * the other in order. Each run of read only calls between them runs in
+    * parallel, if parallelReads is on.
+    */
+   private String callBatch(String request){
+      JSONArray calls;
+      try{
+         calls = new JSONArray(request);
+      }catch(Exception ex){
+         System.out.println("exception in callMethod: "+ex.getMessage());
+         return new JSONObject().toString();
+      }
+      if (calls.length() == 0) {
+         // jsonrpc 2.0: an empty batch is an invalid request
+         JSONObject error = new JSONObject();
+         error.put("code",-32600);
+         error.put("message","Invalid Request");
+         JSONObject result = new JSONObject();
+         result.put("id",JSONObject.NULL);
+         result.put("jsonrpc","2.0");
+         result.put("error",error);
+         return result.toString();
+      }
+      debug("Batch of "+calls.length()+" calls");
+      JSONObject results[] = new JSONObject[calls.length()];
+      int i = 0;
+      while (i < results.length) {
+         int end = i;
+         while (end < results.length && isReadOnly(calls.opt(end))) {
+            end++;
+         }
+         if (end - i > 1 && parallelReads) {
+            IntStream.range(i, end).parallel().forEach(j -> results[j] = call(calls.opt(j)));
+            i = end;
+         } else {
+            results[i] = call(calls.opt(i));
+            i++;
+         }
+      }
+      JSONArray response = new JSONArray();
+      for (int j=0; j<results.length; j++){
+         response.put(results[j]);
+      }
+      return response.toString();
+   }
+
+   private boolean isReadOnly(Object theCall){
+      return theCall instanceof JSONObject
+         && readOnly.contains(((JSONObject)theCall).optString("method"));
+   }
+
+   /**
+    * Calls one method of a batch, any json value that is not a call gets an
+    * empty result
+    */
+   private JSONObject call(Object theCall){
+      if (theCall instanceof JSONObject) {
+         return call((JSONObject)theCall);
+      }
+      System.out.println("exception in callMethod: not a call: "+theCall);
+      return new JSONObject();
+   }
+
+   private JSONObject call(JSONObject theCall){
       JSONObject result = new JSONObject();
       try{
-         JSONObject theCall = new JSONObject(request);
          debug("Request is: "+theCall.toString());
          String method = theCall.getString("method");
          int id = theCall.getInt("id");
@@ -80,7 +169,7 @@ public class StudentCollectionSkeleton extends Object {
       }catch(Exception ex){
          System.out.println("exception in callMethod: "+ex.getMessage());
       }
-      return result.toString();
+      return result;
    }
 }
 
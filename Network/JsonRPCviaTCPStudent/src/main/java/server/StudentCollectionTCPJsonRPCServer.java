@@ -3,6 +3,8 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import org.json.JSONException;
+import org.json.JSONTokener;
 
 /**
  * A class for TCP client-server connections with a threaded server that
@@ -25,34 +27,82 @@ public class StudentCollectionTCPJsonRPCServer extends Thread {
       skeleton = new StudentCollectionSkeleton(stdCol);
    }
 
+   /**
+    * Serves requests on the connection until the client closes it. A client
+    * that starts with the Framing.PREAMBLE sends and receives length prefixed
+    * frames, any other is served plain json. Each response carries the id of
+    * its request, clients may send the next requests before the answers arrive.
+    */
    public void run() {
       // setup connection
       try {
-         OutputStream outSock = conn.getOutputStream();
-         InputStream inSock = conn.getInputStream();
-         byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
-         
-         // receive request
-         int numr = inSock.read(clientInput,0,1024);
-         if (numr != -1) {
-            //System.out.println("read "+numr+" bytes");
-            String request = new String(clientInput,0,numr);
-            System.out.println("request is: "+request);
+         OutputStream outSock = new BufferedOutputStream(conn.getOutputStream());
+         BufferedInputStream inSock = new BufferedInputStream(conn.getInputStream());
 
-            // prep and send response
-            String response = skeleton.callMethod(request);
-            byte clientOut[] = response.getBytes();
-	         outSock.write(clientOut,0,clientOut.length);
-            System.out.println("response is: "+response);
+         // look at the first byte to tell framed clients from plain json ones
+         inSock.mark(1);
+         int first = inSock.read();
+         inSock.reset();
+         if (first == Framing.PREAMBLE[0]) {
+            if (Framing.readPreamble(inSock)) {
+               outSock.write(Framing.PREAMBLE);
+               outSock.flush();
+               serveFrames(new DataInputStream(inSock), outSock);
+            } else {
+               System.out.println("Unknown protocol, closing the connection");
+            }
+         } else if (first >= 0) {
+            serveJson(inSock, outSock);
          }
          inSock.close();
          outSock.close();
          conn.close();
       } catch (IOException e) {
          System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
+      } catch (JSONException e) {
+         System.out.println("Malformed request, closing the connection:\n"+e.getMessage());
+         try {
+            conn.close();
+         } catch (IOException ignored) {
+         }
       }
    }
     
+   /**
+    * Plain json, the requests are read one after the other from the stream.
+    * JSON objects delimit themselves, however TCP splits them.
+    */
+   private void serveJson(InputStream inSock, OutputStream outSock) throws IOException {
+      JSONTokener requests = new JSONTokener(new InputStreamReader(inSock, "UTF-8"));
+
+      // receive requests until the client closes the connection
+      while (requests.nextClean() != 0) {
+         requests.back();
+         String response = respond(requests.nextValue().toString());
+         byte clientOut[] = response.getBytes("UTF-8");
+         outSock.write(clientOut,0,clientOut.length);
+         outSock.flush();
+      }
+   }
+
+   /**
+    * Framed, each request and response is one Framing frame
+    */
+   private void serveFrames(DataInputStream inSock, OutputStream outSock) throws IOException {
+      String request;
+      while ((request = Framing.read(inSock)) != null) {
+         Framing.write(outSock, respond(request));
+         outSock.flush();
+      }
+   }
+
+   private String respond(String request) {
+      System.out.println("request is: "+request);
+      String response = skeleton.callMethod(request);
+      System.out.println("response is: "+response);
+      return response;
+   }
+
    public static void main (String args[]) {
       Socket sock;
       StudentCollection studCol = new StudentCollectionImpl();
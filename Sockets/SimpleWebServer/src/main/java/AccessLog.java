@@ -0,0 +1,209 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log that keeps the request threads off System.out.
+ *
+ * A request claims a slot in a ring buffer with a compare-and-set and fills in
+ * what happened, a background thread formats the records and writes them to
+ * the log file in batches. When the ring is full, records are dropped (and
+ * counted) instead of slowing the requests down. The file is rotated once it
+ * reaches its maximum size: access.log becomes access.log.1 and so on.
+ *
+ * With a sample rate below 1 only that share of the successful requests is
+ * logged, errors are always logged.
+ */
+class AccessLog {
+
+    /** Records the ring holds, a power of two */
+    static final int CAPACITY = 8192;
+
+    /** How long the writer sleeps when there is nothing to write */
+    static final long IDLE_NANOS = 10_000_000L;
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter
+            .ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * One request, the slots are created once and reused
+     */
+    private static class Record {
+        long time;
+        InetAddress remote;
+        String requestLine;
+        int status;
+        long bytes;
+        long micros;
+    }
+
+    private final Record[] ring = new Record[CAPACITY];
+
+    /** Sequence of the record in each slot once it is filled in */
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+    /** Next sequence a request may claim */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /** Next sequence the writer reads, only written by the writer */
+    private volatile long written;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final File file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final double sampleRate;
+    private Writer out;
+    private long size;
+
+    /**
+     * @param file the log file, rotated files get a number appended
+     * @param maxBytes size at which the file is rotated
+     * @param maxFiles number of rotated files kept
+     * @param sampleRate share of the successful requests that is logged
+     */
+    AccessLog(File file, long maxBytes, int maxFiles, double sampleRate)
+            throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.sampleRate = sampleRate;
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Record();
+            published.set(i, -1);
+        }
+        open();
+
+        Thread writer = new Thread(this::run, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+    }
+
+    /**
+     * Records a request, never blocks
+     *
+     * @param requestLine e.g. "GET /index.html HTTP/1.1", null if none was sent
+     * @param startNanos System.nanoTime() when the request was read
+     */
+    void log(InetAddress remote, String requestLine, int status, long bytes,
+            long startNanos) {
+        if (sampleRate < 1 && status < 400
+                && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - written >= CAPACITY) {
+                dropped.increment(); // the writer is behind, do not wait for it
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & (CAPACITY - 1));
+        Record record = ring[slot];
+        record.time = System.currentTimeMillis();
+        record.remote = remote;
+        record.requestLine = requestLine;
+        record.status = status;
+        record.bytes = bytes;
+        record.micros = (System.nanoTime() - startNanos) / 1000;
+        // the volatile write makes the fields above visible to the writer
+        published.set(slot, sequence);
+    }
+
+    /**
+     * Number of records dropped because the ring was full
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private void run() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes all published records as one batch
+     */
+    private synchronized int drain() {
+        StringBuilder line = new StringBuilder(256);
+        int count = 0;
+        try {
+            long sequence = written;
+            while (true) {
+                int slot = (int) (sequence & (CAPACITY - 1));
+                if (published.get(slot) != sequence) {
+                    break; // not claimed yet or still being filled in
+                }
+                Record record = ring[slot];
+                line.append(record.remote == null
+                        ? "-" : record.remote.getHostAddress());
+                line.append(" - - [");
+                TIME.formatTo(Instant.ofEpochMilli(record.time), line);
+                line.append("] \"")
+                        .append(record.requestLine == null ? "-" : record.requestLine)
+                        .append("\" ").append(record.status).append(' ')
+                        .append(record.bytes).append(' ')
+                        .append(record.micros).append("us\n");
+                record.remote = null;
+                record.requestLine = null;
+                sequence++;
+                written = sequence;
+                count++;
+
+                out.write(line.toString());
+                size += line.length();
+                line.setLength(0);
+                if (size >= maxBytes) {
+                    rotate();
+                }
+            }
+            if (count > 0) {
+                out.flush();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return count;
+    }
+
+    private void open() throws IOException {
+        size = file.length();
+        out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        new File(file.getPath() + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists()) {
+                older.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        if (maxFiles > 0) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+        open();
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number of requests the server works on at the same time.
+ *
+ * Without it every accepted connection gets a thread of its own, so under
+ * overload the threads (and their memory) grow until the server falls over
+ * and every client waits. With a limit, at most limit requests run, up to
+ * maxQueued more wait QUEUE_TIMEOUT_MILLIS for a slot and the rest is answered
+ * right away with "503 Service Unavailable" and a Retry-After header.
+ *
+ * The limit can adapt to the measured latency:
+ * "aimd" raises it by one per round of requests answered within
+ * TARGET_LATENCY_MILLIS and cuts it by 10% for a slower one, "gradient"
+ * lowers it when the latency of the last requests rises above the long term
+ * average and raises it while they are equal. "fixed" keeps it where it is.
+ */
+class AdmissionControl {
+
+    /** Longest a request waits for a slot */
+    static final long QUEUE_TIMEOUT_MILLIS = 1000;
+
+    /** Latency the aimd limiter aims for */
+    static final long TARGET_LATENCY_MILLIS = 100;
+
+    private final String limiter;
+    private final int maxLimit;
+    private final int maxQueued;
+
+    /** Current limit, fractional so aimd can grow it by 1/limit */
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private double shortLatency;
+    private double longLatency;
+
+    /**
+     * @param limiter "fixed", "aimd" or "gradient"
+     * @param maxConcurrent most requests handled at the same time
+     * @param maxQueued most requests waiting for a slot
+     */
+    AdmissionControl(String limiter, int maxConcurrent, int maxQueued) {
+        this.limiter = limiter;
+        this.maxLimit = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.limit = limiter.equals("fixed") ? maxConcurrent : Math.min(maxConcurrent, 10);
+    }
+
+    /**
+     * @return true if a new request would be rejected anyway, so the accepting
+     * thread can answer it without starting a thread for it
+     */
+    synchronized boolean full() {
+        return inFlight >= (int) limit && waiting >= maxQueued;
+    }
+
+    /**
+     * Takes a slot, waiting for one if the queue has room
+     *
+     * @return false if the request has to be rejected
+     */
+    synchronized boolean acquire() {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return true;
+        }
+        if (waiting >= maxQueued) {
+            return false;
+        }
+        waiting++;
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUEUE_TIMEOUT_MILLIS);
+            while (inFlight >= (int) limit) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            inFlight++;
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * Frees the slot of an answered request and adapts the limit
+     *
+     * @param latencyNanos time it took to answer the request
+     * @param status status of the response, 5xx counts as overload
+     */
+    synchronized void release(long latencyNanos, int status) {
+        // a request that used only part of the limit says nothing about a larger one
+        boolean saturated = inFlight >= limit / 2;
+        inFlight--;
+        if (limiter.equals("aimd")) {
+            if (status >= 500 || latencyNanos > TimeUnit.MILLISECONDS.toNanos(TARGET_LATENCY_MILLIS)) {
+                limit = Math.max(1, limit * 0.9);
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        } else if (limiter.equals("gradient")) {
+            if (longLatency == 0) {
+                shortLatency = longLatency = latencyNanos;
+            } else {
+                shortLatency += 0.1 * (latencyNanos - shortLatency);
+                longLatency += 0.01 * (latencyNanos - longLatency);
+                longLatency = Math.min(longLatency, 2 * shortLatency);
+                if (saturated) {
+                    double gradient = Math.max(0.5, Math.min(1.0, longLatency / shortLatency));
+                    double target = limit * gradient + Math.sqrt(limit);
+                    limit = Math.max(1, Math.min(maxLimit, 0.8 * limit + 0.2 * target));
+                }
+            }
+        }
+        notifyAll();
+    }
+}
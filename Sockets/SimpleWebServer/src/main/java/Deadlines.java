@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes the sockets of clients that take too long to send their request or to
+ * take the response.
+ *
+ * A socket timeout alone does not help against a client that sends one byte
+ * every few seconds ("slowloris"): the timeout starts over with every byte, so
+ * the ClientHandler's thread waits for the header forever. Here every
+ * connection has a deadline for the phase it is in, the header or the response,
+ * and the socket is closed when it passes, which ends the blocked read or write.
+ *
+ * The deadlines of all connections share one hashed timer wheel: one slot per
+ * tick of TICK_MILLIS, a deadline goes into the slot of its tick (with the
+ * number of turns still to wait) and one thread looks at the next slot every
+ * tick. Setting a deadline is O(1) however many connections are open, and
+ * there is no timer per connection.
+ */
+class Deadlines {
+
+    /** Precision of the deadlines */
+    static final int TICK_MILLIS = 100;
+
+    /** Slots of the wheel, deadlines up to TICK_MILLIS * WHEEL_SIZE need no extra turn */
+    static final int WHEEL_SIZE = 512;
+
+    /**
+     * The deadline of one connection
+     */
+    class Guard {
+        private final Socket socket;
+
+        /** System.nanoTime() when the socket is closed, 0 for no deadline */
+        private volatile long deadline;
+        private volatile boolean header;
+        private volatile boolean expired;
+
+        /** Whether the guard is in a slot of the wheel, or on its way there */
+        private boolean scheduled;
+
+        /** Turns of the wheel left, only used by the wheel thread */
+        private long rounds;
+
+        Guard(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Waiting for the request header, it has to arrive within millis
+         */
+        void header(long millis) {
+            header = true;
+            expireIn(millis);
+            if (draining) {
+                expire(); // no new requests, see drain
+            }
+        }
+
+        /**
+         * Sending the response, the client has to take it within millis
+         */
+        void write(long millis) {
+            header = false;
+            expireIn(millis);
+        }
+
+        /**
+         * Working on the request, no deadline
+         */
+        void clear() {
+            header = false;
+            deadline = 0;
+        }
+
+        /**
+         * @return true if the socket was closed because the deadline passed
+         */
+        boolean expired() {
+            return expired;
+        }
+
+        private void expireIn(long millis) {
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            synchronized (this) {
+                if (scheduled) {
+                    return; // the wheel looks at the new deadline when the old one is due
+                }
+                scheduled = true;
+            }
+            added.add(this);
+        }
+
+        private void expire() {
+            expired = true;
+            guards.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private final Queue<Guard>[] slots;
+    private final Queue<Guard> added = new ConcurrentLinkedQueue<>();
+    private final Set<Guard> guards = ConcurrentHashMap.newKeySet();
+    private final long start = System.nanoTime();
+    private volatile boolean draining;
+
+    /** Ticks since start, only used by the wheel thread */
+    private long tick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Deadlines() {
+        slots = new Queue[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        Thread thread = new Thread(this::run, "deadlines");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts watching a connection, call unwatch when it is closed
+     */
+    Guard watch(Socket socket) {
+        Guard guard = new Guard(socket);
+        guards.add(guard);
+        return guard;
+    }
+
+    void unwatch(Guard guard) {
+        guards.remove(guard);
+        guard.clear();
+    }
+
+    /**
+     * @return number of connections being watched
+     */
+    int size() {
+        return guards.size();
+    }
+
+    /**
+     * Closes the connections waiting for their header, and from now on every
+     * connection that starts waiting for one. Responses under way go on.
+     */
+    void drain() {
+        draining = true;
+        for (Guard guard : guards) {
+            if (guard.header) {
+                guard.expire();
+            }
+        }
+    }
+
+    /**
+     * Closes all connections, for the end of a drain
+     */
+    void closeAll() {
+        for (Guard guard : guards) {
+            guard.expire();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            tick++;
+            Guard guard;
+            while ((guard = added.poll()) != null) {
+                place(guard);
+            }
+            check(slots[(int) (tick % WHEEL_SIZE)]);
+        }
+    }
+
+    /**
+     * Puts a guard into the slot of the tick its deadline is due at
+     */
+    private void place(Guard guard) {
+        long due = Math.max(tick, (guard.deadline - start + tickNanos - 1) / tickNanos);
+        guard.rounds = (due - tick) / WHEEL_SIZE;
+        slots[(int) (due % WHEEL_SIZE)].add(guard);
+    }
+
+    private void check(Queue<Guard> slot) {
+        long now = System.nanoTime();
+        Iterator<Guard> it = slot.iterator();
+        while (it.hasNext()) {
+            Guard guard = it.next();
+            if (guard.rounds > 0) {
+                guard.rounds--;
+                continue;
+            }
+            it.remove();
+            long deadline = guard.deadline;
+            if (deadline != 0 && now - deadline >= 0) {
+                guard.expire();
+                continue;
+            }
+            synchronized (guard) {
+                if (guard.deadline == 0) {
+                    guard.scheduled = false; // cleared, expireIn schedules it again
+                    continue;
+                }
+            }
+            added.add(guard); // the deadline moved, look again when it is due
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the bytes of small, often requested files in memory, so they are
+ * answered without opening the file and sending it from disk every time.
+ *
+ * The cache is bounded by the total number of bytes it holds and evicts the
+ * least recently used files first. Every lookup compares the file's
+ * modification time and length with the cached copy, so a changed file is
+ * read again on its next request. Files larger than maxEntry are never cached,
+ * they are streamed from disk with transferTo as before: a few big files would
+ * otherwise push out all the small ones.
+ */
+class FileCache {
+
+    /**
+     * A cached file
+     */
+    static class Entry {
+        final byte[] bytes;
+        final long lastModified;
+
+        Entry(byte[] bytes, long lastModified) {
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntry;
+
+    /** Files by path, in LRU order */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+
+    /**
+     * @param maxBytes upper bound for the bytes held, 0 disables caching
+     * @param maxEntry largest file that is cached
+     */
+    FileCache(long maxBytes, long maxEntry) {
+        this.maxBytes = maxBytes;
+        this.maxEntry = Math.min(maxEntry, maxBytes);
+    }
+
+    /**
+     * Contents of a file, from memory if the cached copy is current
+     *
+     * @param file an existing file
+     * @return the bytes of the file, null if it is too large for the cache and
+     * has to be streamed
+     * @throws IOException if the file cannot be read
+     */
+    byte[] get(File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (length > maxEntry) {
+            bypassed.increment();
+            return null;
+        }
+        String key = file.getPath();
+        synchronized (this) {
+            Entry cached = entries.get(key);
+            if (cached != null && cached.lastModified == lastModified && cached.bytes.length == length) {
+                hits.increment();
+                return cached.bytes;
+            }
+        }
+        misses.increment();
+
+        // read outside the lock so one slow disk read does not hold up every hit
+        byte[] loaded = Files.readAllBytes(file.toPath());
+        if (loaded.length <= maxEntry && file.lastModified() == lastModified) {
+            // not changed while we read it
+            synchronized (this) {
+                put(key, new Entry(loaded, lastModified));
+            }
+        }
+        return loaded;
+    }
+
+    private void put(String key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes -= old.bytes.length;
+        }
+        bytes += entry.bytes.length;
+
+        // evict least recently used entries until we are within bounds again
+        Iterator<Map.Entry<String, Entry>> oldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && oldest.hasNext()) {
+            bytes -= oldest.next().getValue().bytes.length;
+            oldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Size and counters of the cache, one "name value" pair per line
+     */
+    synchronized String stats() {
+        return "entries " + entries.size() + "\n"
+                + "bytes " + bytes + "\n"
+                + "maxBytes " + maxBytes + "\n"
+                + "hits " + hits.sum() + "\n"
+                + "misses " + misses.sum() + "\n"
+                + "evictions " + evictions.sum() + "\n"
+                + "bypassed " + bypassed.sum() + "\n";
+    }
+}
@@ -1,15 +1,73 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SimpleWebServer {
 
+    /**
+     * Runs the ClientHandlers, null to start a new platform thread per request
+     */
+    private ExecutorService executor;
+
+    /**
+     * Where the ClientHandlers log the requests they answered, may be null
+     */
+    private AccessLog accessLog;
+
+    /**
+     * Bounds the requests handled at the same time, null for no limit
+     */
+    private AdmissionControl admission;
+
+    /**
+     * Small files kept in memory, null if caching is off
+     */
+    private FileCache cache;
+
+    /**
+     * Largest file the cache holds, bigger ones are always streamed from disk
+     */
+    static final long MAX_CACHED_FILE = 1024 * 1024;
+
+    /**
+     * Longest a shutdown waits for the requests in progress
+     */
+    static final long DRAIN_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Deadlines of the open connections
+     */
+    private final Deadlines deadlines = new Deadlines();
+
+    private ServerSocket server;
+
+    /**
+     * Set once the server shuts down, see drain
+     */
+    private volatile boolean draining;
+
     // 
     public static void main(String args[]) {
         int port = 9099; // default port
-        if (args.length != 1) {
+        String mode = "thread"; // default execution mode
+        int poolSize = 4 * Runtime.getRuntime().availableProcessors();
+        double sampleRate = 1.0; // share of the requests in access.log
+        int maxConcurrent = 0; // requests handled at the same time, 0 for no limit
+        String limiter = "fixed";
+        long cacheSize = 16 * 1024 * 1024; // bytes of small files kept in memory, 0 for none
+        if (args.length < 1 || args.length > 7) {
 
-            System.out.println("Expected arguments: <port(int)>");
+            System.out.println("Expected arguments: <port(int)> [mode(thread|virtual|pool)] [poolSize(int)]"
+                    + " [accessLogSample(0..1)] [maxConcurrent(int)] [limiter(fixed|aimd|gradient)]"
+                    + " [cacheSize(bytes)]");
             System.exit(1);
         }
         System.out.println("running");
@@ -19,14 +77,103 @@ try {
             System.out.println("[Port] must be integer");
             System.exit(2);
         }
+        if (args.length > 1) {
+            mode = args[1];
+        }
+        if (args.length > 2) {
+            try {
+                poolSize = Integer.parseInt(args[2]);
+            } catch (NumberFormatException nfe) {
+                System.out.println("[PoolSize] must be integer");
+                System.exit(2);
+            }
+        }
+        if (args.length > 3) {
+            try {
+                sampleRate = Double.parseDouble(args[3]);
+            } catch (NumberFormatException nfe) {
+                System.out.println("[AccessLogSample] must be a number between 0 and 1");
+                System.exit(2);
+            }
+        }
+        if (args.length > 4) {
+            try {
+                maxConcurrent = Integer.parseInt(args[4]);
+            } catch (NumberFormatException nfe) {
+                System.out.println("[MaxConcurrent] must be integer");
+                System.exit(2);
+            }
+        }
+        if (args.length > 5) {
+            limiter = args[5];
+            if (!limiter.equals("fixed") && !limiter.equals("aimd") && !limiter.equals("gradient")) {
+                System.out.println("[Limiter] must be fixed, aimd or gradient");
+                System.exit(2);
+            }
+        }
+        if (args.length > 6) {
+            try {
+                cacheSize = Long.parseLong(args[6]);
+            } catch (NumberFormatException nfe) {
+                System.out.println("[CacheSize] must be integer");
+                System.exit(2);
+            }
+        }
 
-        SimpleWebServer server = new SimpleWebServer(port);
+        AccessLog accessLog = null;
+        try {
+            accessLog = new AccessLog(new File("access.log"), 10 * 1024 * 1024, 5, sampleRate);
+        } catch (IOException ex) {
+            System.out.println("Cannot open access.log, requests are not logged: " + ex.getMessage());
+        }
+        // as many requests may wait for a slot as can run at the same time
+        AdmissionControl admission = maxConcurrent > 0
+                ? new AdmissionControl(limiter, maxConcurrent, maxConcurrent) : null;
+        FileCache cache = cacheSize > 0 ? new FileCache(cacheSize, MAX_CACHED_FILE) : null;
+        SimpleWebServer server = new SimpleWebServer(port, createExecutor(mode, poolSize), accessLog,
+                admission, cache);
 
     }
 
+    /**
+     * Creates the executor for the execution mode
+     *
+     * @param mode "thread" for a new platform thread per request, "virtual" for
+     * a virtual thread per request (Java 21), "pool" for a fixed pool of threads
+     * @param poolSize number of threads in the pool
+     * @return the executor, null for "thread"
+     */
+    static ExecutorService createExecutor(String mode, int poolSize) {
+        if (mode.equals("virtual")) {
+            // looked up at runtime so the server still compiles and runs before Java 21
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                System.out.println("Virtual threads need Java 21, using a pool of "
+                        + poolSize + " threads instead");
+                return Executors.newFixedThreadPool(poolSize);
+            }
+        } else if (mode.equals("pool")) {
+            return Executors.newFixedThreadPool(poolSize);
+        } else if (!mode.equals("thread")) {
+            System.out.println("[Mode] must be thread, virtual or pool");
+            System.exit(2);
+        }
+        return null;
+    }
+
     public SimpleWebServer(int port) {
+        this(port, null, null, null, null);
+    }
+
+    public SimpleWebServer(int port, ExecutorService executor, AccessLog accessLog,
+            AdmissionControl admission, FileCache cache) {
+        this.executor = executor;
+        this.accessLog = accessLog;
+        this.admission = admission;
+        this.cache = cache;
 
-        ServerSocket server = null;
         Socket sock = null;
 
         try {
@@ -37,32 +184,78 @@ try {
             //***   Write the bytes to the socket's output stream
             //***   close streams and socket appropriately
 
-            server = new ServerSocket(port);
+            // opened through a channel so accepted sockets have one too,
+            // which lets ClientHandler send files with transferTo
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(port));
 
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
+        // Ctrl-C or kill: answer the requests in progress before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "drain"));
+
+        System.out.println("Ready...");
         while (server.isBound() && !server.isClosed()) {
-            System.out.println("Ready...");
             try {
                 sock = server.accept();
-                createClientThread(sock);
+                if (admission != null && admission.full()) {
+                    // no thread for a request we would reject anyway
+                    ClientHandler.refuse(sock);
+                } else {
+                    createClientThread(sock);
+                }
             } catch (IOException ex) {
-                ex.printStackTrace();
+                if (!draining) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Shuts the server down gracefully: stops accepting, closes connections
+     * still waiting for their header and gives the others up to
+     * DRAIN_TIMEOUT_MILLIS to get their response before they are closed.
+     */
+    private void drain() {
+        draining = true;
+        try {
+            server.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        deadlines.drain();
+        long end = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        try {
+            while (deadlines.size() > 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
+        int left = deadlines.size();
+        deadlines.closeAll();
+        System.out.println("Drained" + (left > 0 ? ", closed " + left + " connections still busy" : ""));
     }
 
     /**
      * Take the newly accepted socket and make it a thread by passing it to
      * inner class ClientHandler which implements Runnable; subsequently start
-     * the thread up so it can be processed.
+     * the thread up so it can be processed. With an executor the handler runs
+     * on a virtual thread or a pooled thread instead.
      *
      * @param sock
      */
     private void createClientThread(Socket sock) {
-        Thread thread = new Thread(new ClientHandler(sock));
+        ClientHandler handler = new ClientHandler(sock, accessLog, admission, cache,
+                deadlines.watch(sock), deadlines);
+        if (executor != null) {
+            executor.execute(handler);
+            return;
+        }
+        Thread thread = new Thread(handler);
         thread.start();
     }
 }
@@ -76,9 +269,48 @@ try {
  */
 class ClientHandler implements Runnable {
 
+    /**
+     * How long a read may wait for the client, so a client that connects and
+     * sends nothing does not hold a thread forever
+     */
+    static final int READ_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Time a client has for its whole header, however often it sends a byte
+     */
+    static final int HEADER_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Time a client has to take a response, plus a second per MIN_WRITE_RATE
+     * bytes of the file, which goes out in one transferTo call
+     */
+    static final int WRITE_TIMEOUT_MILLIS = 30000;
+    static final int MIN_WRITE_RATE = 16 * 1024;
+
+    /** Seconds a client is asked to wait when the server is too busy */
+    static final int RETRY_AFTER = 1;
+
+    private static final byte[] BUSY = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Content-Type: text/html; charset=utf-8\r\n"
+            + "Content-Length: 35\r\n"
+            + "Retry-After: " + RETRY_AFTER + "\r\n"
+            + "Connection: close\r\n\r\n"
+            + "Server busy, please try again later").getBytes();
+
     //establish a new socket to read client input from (via BufferedReader)
+    Socket sock = null;
     InputStream in = null;
     OutputStream out = null;
+    AccessLog accessLog;
+    AdmissionControl admission;
+    FileCache cache;
+    Deadlines.Guard guard;
+    Deadlines deadlines;
+
+    // what writeResponse did, for the access log
+    String requestLine;
+    int status;
+    long bytes;
 
     /**
      * ClientHandler is the constructor that accepts a client socket & chains it
@@ -86,10 +318,23 @@ class ClientHandler implements Runnable {
      * a response for the client.
      *
      * @param clientSocket
+     * @param accessLog where the answered request is logged, may be null
+     * @param admission decides whether the request is handled, may be null
+     * @param cache small files kept in memory, may be null
+     * @param guard the deadline of the connection
+     * @param deadlines where the guard is unwatched when the connection is done
      */
-    public ClientHandler(Socket clientSocket) {
+    public ClientHandler(Socket clientSocket, AccessLog accessLog, AdmissionControl admission,
+            FileCache cache, Deadlines.Guard guard, Deadlines deadlines) {
+        this.accessLog = accessLog;
+        this.admission = admission;
+        this.cache = cache;
+        this.guard = guard;
+        this.deadlines = deadlines;
         try {
             //Set local socket to clientSocket received via constructor
+            sock = clientSocket;
+            sock.setSoTimeout(READ_TIMEOUT_MILLIS);
             in = clientSocket.getInputStream();
             out = clientSocket.getOutputStream();
 
@@ -98,83 +343,237 @@ class ClientHandler implements Runnable {
         }
     }//end constructor
 
-    public byte[] createResponse(InputStream inStream) {
+    /**
+     * Reads the request and writes the response. Small files are answered from
+     * the FileCache, larger ones are not loaded into memory, they are streamed
+     * from disk with FileChannel.transferTo.
+     * HEAD requests and single byte ranges ("Range: bytes=0-99") are supported.
+     */
+    public void writeResponse(InputStream inStream, OutputStream out)
+            throws IOException {
 
-        byte[] response = null;
-        BufferedReader in = null;
+        // Read from socket's input stream.  Must use an
+        // InputStreamReader to bridge from streams to a reader
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(inStream, "UTF-8"));
 
-        try {
+        // Get header and save the filename from the GET line:
+        //    example GET format: GET /index.html HTTP/1.1
 
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                    new InputStreamReader(inStream, "UTF-8"));
-
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
-
-            String filename = null;
-            String line = in.readLine();
-            System.out.println("Received: " + line);
-            if (line != null && !line.trim().equals("")) {
-                StringTokenizer st = new StringTokenizer(line);
-                if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
-                    filename = st.nextToken();
-                    if (filename.startsWith("/")) {
-                        filename = filename.substring(1);
-                    }
+        String filename = null;
+        boolean head = false;
+        String range = null;
+        guard.header(HEADER_TIMEOUT_MILLIS);
+        String line = in.readLine();
+        requestLine = line;
+        if (line != null && !line.trim().equals("")) {
+            StringTokenizer st = new StringTokenizer(line);
+            String method = st.nextToken();
+            if ((method.equals("GET") || method.equals("HEAD")) && st.hasMoreTokens()) {
+                head = method.equals("HEAD");
+                filename = st.nextToken();
+                if (filename.startsWith("/")) {
+                    filename = filename.substring(1);
                 }
             }
-            System.out.println("FINISHED REQUEST, STARTING RESPONSE\n");
+        }
+        // the rest of the header, we only care about Range
+        while (line != null && !line.equals("")) {
+            line = in.readLine();
+            if (line != null && line.toLowerCase().startsWith("range:")) {
+                range = line.substring("range:".length()).trim();
+            }
+        }
+        guard.write(WRITE_TIMEOUT_MILLIS);
+
+        // Generate an appropriate response to the user
+        if (filename == null) {
+            status = 400;
+            bytes = writeText(out, "400 Bad Request",
+                    "<html>Illegal request: no GET</html>", head);
+            return;
+        }
+        if (filename.equals("cache") && cache != null) {
+            status = 200;
+            bytes = writeText(out, "200 OK", "<html><pre>" + cache.stats() + "</pre></html>", head);
+            return;
+        }
+        File file = new File(filename);
+        if (!file.isFile()) {
+            status = 404;
+            bytes = writeText(out, "404 Not Found",
+                    "<html>File not found: " + filename + "</html>", head);
+            return;
+        }
+
+        // small files come from memory, big ones (null) are streamed from disk
+        byte[] cached = cache != null ? cache.get(file) : null;
+        long size = cached != null ? cached.length : file.length();
+        long[] span = parseRange(range, size);
+        if (span != null && span.length == 0) {
+            status = 416;
+            out.write(("HTTP/1.1 416 Range Not Satisfiable\r\n"
+                    + "Content-Range: bytes */" + size + "\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes());
+            out.flush();
+            return;
+        }
 
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                        "<html>Illegal request: no GET</html>".getBytes();
+        long start = 0;
+        long length = size;
+        StringBuilder header = new StringBuilder();
+        if (span == null) {
+            status = 200;
+            header.append("HTTP/1.1 200 OK\r\n");
+        } else {
+            start = span[0];
+            length = span[1] - span[0] + 1;
+            status = 206;
+            header.append("HTTP/1.1 206 Partial Content\r\n");
+            header.append("Content-Range: bytes ").append(span[0]).append("-")
+                    .append(span[1]).append("/").append(size).append("\r\n");
+        }
+        String type = URLConnection.guessContentTypeFromName(file.getName());
+        header.append("Content-Type: ")
+                .append(type != null ? type : "application/octet-stream")
+                .append("\r\n");
+        header.append("Content-Length: ").append(length).append("\r\n");
+        header.append("Accept-Ranges: bytes\r\n");
+        header.append("Connection: close\r\n\r\n");
+        out.write(header.toString().getBytes());
+
+        if (!head) {
+            guard.write(WRITE_TIMEOUT_MILLIS + length * 1000 / MIN_WRITE_RATE);
+            if (cached != null) {
+                out.write(cached, (int) start, (int) length);
             } else {
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: "
-                            + filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
+                out.flush();
+                sendFile(file, start, length);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: "
-                    + e.getMessage() + "</html").getBytes();
+            bytes = length;
         }
-        System.out.println("RESPONSE GENERATED!");
-        return response;
+        out.flush();
     }
 
     /**
-     * Read bytes from a file and return them in the byte array. We read in
-     * blocks of 512 bytes for efficiency.
+     * Parses a single range "bytes=start-end", "bytes=start-" or "bytes=-suffix"
+     *
+     * @return {first, last} byte, an empty array if the range is outside the
+     * file or null to send the whole file
      */
-    public static byte[] readFileInBytes(File f)
-            throws IOException {
+    static long[] parseRange(String range, long size) {
+        if (range == null || !range.startsWith("bytes=") || range.contains(",")) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long first;
+            long last = size - 1;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, size - suffix);
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                if (dash < spec.length() - 1) {
+                    last = Math.min(last, Long.parseLong(spec.substring(dash + 1)));
+                }
+            }
+            if (first >= size) {
+                return new long[0];
+            }
+            return last < first ? null : new long[]{first, last};
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
 
-        byte[] result = new byte[(int) f.length()];
+    /**
+     * Sends a small text response
+     *
+     * @return number of body bytes sent
+     */
+    private static long writeText(OutputStream out, String status,
+            String text, boolean head) throws IOException {
+        byte[] body = text.getBytes();
+        out.write(("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/html; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes());
+        if (!head) {
+            out.write(body);
+        }
+        out.flush();
+        return head ? 0 : body.length;
+    }
 
-        try {
-            new FileInputStream(f).read(result);
-        } catch (Exception ex) {
-            ex.printStackTrace();
+    /**
+     * Answers with 503 and closes the socket, for requests over the limit. The
+     * answer fits in the empty socket buffer, so this does not block.
+     */
+    static void refuse(Socket sock) {
+        try (Socket client = sock) {
+            client.getOutputStream().write(BUSY);
+        } catch (IOException ex) {
+            // the client is gone already
         }
+    }
 
-        return result;
+    /**
+     * Copies a region of the file to the socket with transferTo, which the
+     * kernel can do without copying the bytes through our heap (sendfile).
+     */
+    private void sendFile(File f, long start, long length) throws IOException {
+        WritableByteChannel target = sock.getChannel() != null
+                ? sock.getChannel() : Channels.newChannel(out);
+        try (FileChannel file = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, target);
+                if (sent == 0 && position >= file.size()) {
+                    throw new IOException("File got shorter while sending it");
+                }
+                position += sent;
+            }
+        }
     }
 
     @Override
     public void run() {
-        System.out.println("Starting thread");
+        long start = System.nanoTime();
         try {
-            out.write(createResponse(in));
+            if (admission == null) {
+                writeResponse(in, out);
+            } else if (admission.acquire()) {
+                long admitted = System.nanoTime();
+                try {
+                    writeResponse(in, out);
+                } finally {
+                    admission.release(System.nanoTime() - admitted, status);
+                }
+            } else {
+                status = 503;
+                out.write(BUSY);
+                out.flush();
+            }
+            if (accessLog != null) {
+                accessLog.log(sock.getInetAddress(), requestLine, status, bytes, start);
+            }
         } catch (IOException ex) {
-            ex.printStackTrace();
+            if (!guard.expired()) {
+                ex.printStackTrace();
+            }
+            // else the client was too slow and its socket closed
         } finally {
+            deadlines.unwatch(guard);
             try {
                 in.close();
                 out.close();
@@ -182,7 +581,5 @@ class ClientHandler implements Runnable {
                 ex.printStackTrace();
             }
         }
-
-        System.out.println("Ending thread");
     }
 }
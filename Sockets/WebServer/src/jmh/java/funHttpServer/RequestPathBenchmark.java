@@ -0,0 +1,150 @@
+package funHttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the request path of the fun web server. Run them from the
+ * Sockets/WebServer directory (buildFileList lists www/), e.g.
+ *
+ *   gradle jmh
+ *   gradle jmh -Pbench=RequestPathBenchmark.splitQuery
+ *
+ * The gradle task runs JMH with the gc profiler, which adds the allocation rate
+ * (gc.alloc.rate.norm is bytes per operation) to every result.
+ *
+ * Each benchmark only uses the parameters of the states it takes, so the file
+ * sizes are not multiplied with the header counts and so on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPathBenchmark {
+
+  /**
+   * A server without sockets and a request as the client would send it
+   */
+  @State(Scope.Benchmark)
+  public static class RequestState {
+    /** Header fields besides the request line */
+    @Param({"0", "8", "32"})
+    int headerCount;
+
+    /** Query parameters besides num1 and num2 */
+    @Param({"0", "16", "64"})
+    int querySize;
+
+    WebServer server;
+    byte[] request;
+
+    @Setup
+    public void setup() {
+      ServerConfig config = new ServerConfig();
+      config.accessLog = "none";
+      server = new WebServer(config);
+
+      StringBuilder target = new StringBuilder("/multiply?num1=3&num2=4");
+      for (int i = 0; i < querySize; i++) {
+        target.append("&param").append(i).append("=value").append(i);
+      }
+      StringBuilder text = new StringBuilder("GET ").append(target).append(" HTTP/1.1\r\n");
+      for (int i = 0; i < headerCount; i++) {
+        text.append("X-Header-").append(i).append(": some value number ").append(i).append("\r\n");
+      }
+      text.append("\r\n");
+      request = text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * A query string to split
+   */
+  @State(Scope.Benchmark)
+  public static class QueryState {
+    /** Number of name=value pairs */
+    @Param({"1", "16", "128"})
+    int querySize;
+
+    String query;
+
+    @Setup
+    public void setup() {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < querySize; i++) {
+        if (i > 0) {
+          builder.append('&');
+        }
+        // some encoded characters so the decoder has work to do
+        builder.append("name").append(i).append("=hello+world%2Fme").append(i);
+      }
+      query = builder.toString();
+    }
+  }
+
+  /**
+   * A temporary file with random content
+   */
+  @State(Scope.Benchmark)
+  public static class FileState {
+    @Param({"1024", "65536", "1048576"})
+    int fileSize;
+
+    File file;
+
+    @Setup
+    public void setup() throws IOException {
+      file = File.createTempFile("benchmark", ".bin");
+      byte[] content = new byte[fileSize];
+      new Random(42).nextBytes(content);
+      try (FileOutputStream out = new FileOutputStream(file)) {
+        out.write(content);
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      file.delete();
+    }
+  }
+
+  @Benchmark
+  public byte[] createResponse(RequestState state) {
+    return state.server.createResponse(new ByteArrayInputStream(state.request));
+  }
+
+  @Benchmark
+  public Map<String, String> splitQuery(QueryState state) throws IOException {
+    return WebServer.splitQuery(state.query);
+  }
+
+  @Benchmark
+  public String buildFileList() {
+    return WebServer.buildFileList();
+  }
+
+  @Benchmark
+  public byte[] readFileInBytes(FileState state) throws IOException {
+    return WebServer.readFileInBytes(state.file);
+  }
+}
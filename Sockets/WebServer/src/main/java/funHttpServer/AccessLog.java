@@ -0,0 +1,231 @@
+package funHttpServer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log that stays off the request path.
+ *
+ * Printing a few lines per request to System.out means every request thread
+ * takes the lock of the stream and waits for the console. Here a request only
+ * claims a slot in a ring buffer with a compare-and-set and fills in what
+ * happened. The Strings of the log line are not even built then, a background
+ * thread formats the records and writes them to the file in batches.
+ *
+ * When the writer cannot keep up and the ring is full, records are dropped and
+ * counted instead of slowing down the requests. The file is rotated once it
+ * reaches its maximum size: access.log becomes access.log.1, the old .1 becomes
+ * .2 and so on.
+ *
+ * With a sample rate below 1 only that share of the successful requests is
+ * logged, errors (status 400 and up) are always logged.
+ */
+public class AccessLog {
+  /** Records the ring holds, a power of two */
+  static final int CAPACITY = 8192;
+
+  /** How long the writer sleeps when there is nothing to write */
+  static final long IDLE_NANOS = 10_000_000L;
+
+  /** Common log format time, e.g. "18/Oct/2026:11:39:06 +0000" */
+  private static final DateTimeFormatter TIME =
+      DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneOffset.UTC);
+
+  /**
+   * One request, the slots are created once and reused
+   */
+  private static class Record {
+    long time;
+    InetAddress remote;
+    HttpRequest request;
+    int status;
+    long bytes;
+    long micros;
+  }
+
+  private final Record[] ring = new Record[CAPACITY];
+
+  /** Sequence of the record in each slot once it is filled, the writer waits for it */
+  private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+  /** Next sequence a request may claim */
+  private final AtomicLong claimed = new AtomicLong();
+
+  /** Next sequence the writer reads, only written by the writer */
+  private volatile long written;
+
+  private final LongAdder dropped = new LongAdder();
+
+  private final File file;
+  private final long maxBytes;
+  private final int maxFiles;
+  private final double sampleRate;
+  private Writer out;
+  private long size;
+
+  /**
+   * @param file the log file, rotated files get a number appended
+   * @param maxBytes size at which the file is rotated
+   * @param maxFiles number of rotated files kept next to the current one
+   * @param sampleRate share of the successful requests that is logged, 0 to 1
+   */
+  public AccessLog(File file, long maxBytes, int maxFiles, double sampleRate) throws IOException {
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+    this.sampleRate = sampleRate;
+    for (int i = 0; i < CAPACITY; i++) {
+      ring[i] = new Record();
+      published.set(i, -1);
+    }
+    open();
+
+    Thread writer = new Thread(this::run, "access-log");
+    writer.setDaemon(true);
+    writer.start();
+    // write what is still in the ring when the server is stopped
+    Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+  }
+
+  /**
+   * Records a request, never blocks
+   * @param remote address of the client
+   * @param request the request, null if it could not be parsed
+   * @param status status of the response
+   * @param bytes body bytes sent
+   * @param startNanos System.nanoTime() when the request was read
+   */
+  public void log(InetAddress remote, HttpRequest request, int status, long bytes, long startNanos) {
+    if (sampleRate < 1 && status < 400 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return;
+    }
+
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - written >= CAPACITY) {
+        dropped.increment(); // the writer is behind, do not wait for it
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    int slot = (int) (sequence & (CAPACITY - 1));
+    Record record = ring[slot];
+    record.time = System.currentTimeMillis();
+    record.remote = remote;
+    record.request = request;
+    record.status = status;
+    record.bytes = bytes;
+    record.micros = (System.nanoTime() - startNanos) / 1000;
+    // the volatile write makes the fields above visible to the writer
+    published.set(slot, sequence);
+  }
+
+  /**
+   * Number of records dropped because the ring was full
+   */
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  private void run() {
+    while (true) {
+      if (drain() == 0) {
+        LockSupport.parkNanos(IDLE_NANOS);
+      }
+    }
+  }
+
+  /**
+   * Writes all published records as one batch
+   * @return the number of records written
+   */
+  private synchronized int drain() {
+    StringBuilder line = new StringBuilder(256);
+    int count = 0;
+    try {
+      long sequence = written;
+      while (true) {
+        int slot = (int) (sequence & (CAPACITY - 1));
+        if (published.get(slot) != sequence) {
+          break; // not claimed yet or still being filled in
+        }
+        Record record = ring[slot];
+        format(record, line);
+        record.remote = null;
+        record.request = null;
+        sequence++;
+        written = sequence;
+        count++;
+
+        out.write(line.toString());
+        size += line.length();
+        line.setLength(0);
+        if (size >= maxBytes) {
+          rotate();
+        }
+      }
+      if (count > 0) {
+        out.flush();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return count;
+  }
+
+  /**
+   * Common log format plus the time it took to answer, e.g.
+   * 127.0.0.1 - - [18/Oct/2026:11:39:06 +0000] "GET /json HTTP/1.1" 200 58 312us
+   */
+  private static void format(Record record, StringBuilder line) {
+    line.append(record.remote == null ? "-" : record.remote.getHostAddress());
+    line.append(" - - [");
+    TIME.formatTo(Instant.ofEpochMilli(record.time), line);
+    line.append("] \"").append(record.request == null ? "-" : record.request.requestLine()).append("\" ");
+    line.append(record.status).append(' ').append(record.bytes).append(' ');
+    line.append(record.micros).append("us\n");
+  }
+
+  private void open() throws IOException {
+    size = file.length();
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+  }
+
+  /**
+   * access.log becomes access.log.1, access.log.1 becomes access.log.2 and so on,
+   * the oldest file is deleted
+   */
+  private void rotate() throws IOException {
+    out.close();
+    File oldest = new File(file.getPath() + "." + maxFiles);
+    oldest.delete();
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      File older = new File(file.getPath() + "." + i);
+      if (older.exists()) {
+        older.renameTo(new File(file.getPath() + "." + (i + 1)));
+      }
+    }
+    if (maxFiles > 0) {
+      file.renameTo(new File(file.getPath() + ".1"));
+    } else {
+      file.delete();
+    }
+    open();
+  }
+}
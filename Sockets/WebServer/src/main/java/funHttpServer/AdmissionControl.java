@@ -0,0 +1,218 @@
+package funHttpServer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether the server takes on another request or turns it away.
+ *
+ * Without a limit an overloaded server accepts everything: requests pile up in
+ * queues, every one of them gets slower and memory grows until something breaks.
+ * It is better to answer some requests fast with "503 Service Unavailable" and
+ * a Retry-After header, so the others still get good latency and the clients
+ * know to come back later.
+ *
+ * At most limit requests are handled at the same time. A few more (maxQueued)
+ * may wait up to queueTimeout for a slot, everything beyond is rejected right
+ * away. The number of open connections can be bounded as well, a connection
+ * over that bound is answered with 503 and closed as soon as it is accepted.
+ *
+ * The limit is either fixed or adapts to the measured latency:
+ *
+ * - aimd: additive increase, multiplicative decrease. Every request answered
+ *   within targetLatency (and without a 5xx) raises the limit by 1/limit, so
+ *   roughly by one per "round" of requests. A slow or failed request cuts it
+ *   by 10%.
+ * - gradient: compares the latency over the last few requests with the long
+ *   term average. While they are the same, the limit grows by about its square
+ *   root per round. When the recent latency rises, requests are queueing up
+ *   somewhere and the limit shrinks by the same ratio, down to half per round.
+ *
+ * Either way the limit stays between 1 and maxConcurrent.
+ */
+public class AdmissionControl {
+  /** Share of the limit kept when aimd backs off */
+  static final double BACKOFF = 0.9;
+
+  /** Weights of a new latency in the short and the long term averages (gradient) */
+  static final double SHORT_WEIGHT = 0.1;
+  static final double LONG_WEIGHT = 0.01;
+
+  /** How much of a new limit is taken over at once (gradient) */
+  static final double SMOOTHING = 0.2;
+
+  private final String limiter;
+  private final int maxLimit;
+  private final int maxQueued;
+  private final long queueTimeoutNanos;
+  private final long targetNanos;
+  private final int maxConnections;
+
+  /** Current limit, fractional so aimd can grow it by 1/limit. Guarded by this. */
+  private double limit;
+  private int inFlight;
+  private int waiting;
+  private double shortLatency;
+  private double longLatency;
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder rejectedConnections = new LongAdder();
+
+  /**
+   * @param limiter "fixed", "aimd" or "gradient"
+   * @param maxConcurrent most requests handled at the same time, 0 for no limit
+   * @param maxQueued most requests waiting for a slot
+   * @param queueTimeoutMillis longest a request waits for a slot
+   * @param targetLatencyMillis latency aimd aims for
+   * @param maxConnections most open connections, 0 for no limit
+   */
+  public AdmissionControl(String limiter, int maxConcurrent, int maxQueued, long queueTimeoutMillis,
+      long targetLatencyMillis, int maxConnections) {
+    this.limiter = limiter;
+    this.maxLimit = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+    this.maxConnections = maxConnections;
+    // an adaptive limit starts low and finds its level, a fixed one is what it is
+    this.limit = limiter.equals("fixed") ? maxConcurrent : Math.max(1, Math.min(maxConcurrent, 10));
+  }
+
+  /**
+   * Takes a slot for a request. Call release once the response is ready.
+   * @param mayWait false on threads that must never block (event loops), the
+   *     request is then rejected when there is no free slot
+   * @return false if the request has to be rejected
+   */
+  public boolean acquire(boolean mayWait) {
+    if (maxLimit <= 0) {
+      return true;
+    }
+    synchronized (this) {
+      if (inFlight < (int) limit) {
+        inFlight++;
+        return true;
+      }
+      if (!mayWait || waiting >= maxQueued) {
+        rejected.increment();
+        return false;
+      }
+      waiting++;
+      try {
+        long deadline = System.nanoTime() + queueTimeoutNanos;
+        while (inFlight >= (int) limit) {
+          long left = deadline - System.nanoTime();
+          if (left <= 0) {
+            rejected.increment();
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        inFlight++;
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        rejected.increment();
+        return false;
+      } finally {
+        waiting--;
+      }
+    }
+  }
+
+  /**
+   * Frees the slot of a request and lets its latency move the limit
+   * @param latencyNanos time it took to answer the request
+   * @param status status of the response, 5xx counts as overload
+   */
+  public void release(long latencyNanos, int status) {
+    if (maxLimit <= 0) {
+      return;
+    }
+    synchronized (this) {
+      // a request that used only part of the limit says nothing about a larger one
+      boolean saturated = inFlight >= limit / 2;
+      inFlight--;
+      if (limiter.equals("aimd")) {
+        if (status >= 500 || latencyNanos > targetNanos) {
+          limit = Math.max(1, limit * BACKOFF);
+        } else if (saturated) {
+          limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+      } else if (limiter.equals("gradient")) {
+        adjustByGradient(latencyNanos, saturated);
+      }
+      notifyAll();
+    }
+  }
+
+  private void adjustByGradient(long latencyNanos, boolean saturated) {
+    if (longLatency == 0) {
+      shortLatency = longLatency = latencyNanos;
+      return;
+    }
+    shortLatency += SHORT_WEIGHT * (latencyNanos - shortLatency);
+    longLatency += LONG_WEIGHT * (latencyNanos - longLatency);
+    if (longLatency > 2 * shortLatency) {
+      // load went down a lot, let the long term average follow faster
+      longLatency = 2 * shortLatency;
+    }
+    if (!saturated) {
+      return;
+    }
+    double gradient = Math.max(0.5, Math.min(1.0, longLatency / shortLatency));
+    double target = limit * gradient + Math.sqrt(limit);
+    limit = Math.max(1, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+  }
+
+  /**
+   * Counts a newly accepted connection
+   * @return false if there are too many open connections, the connection is
+   *     then not counted and should be answered with 503 and closed
+   */
+  public boolean openConnection() {
+    // counted even without a bound, a drain waits for the count to reach 0
+    if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+      connections.decrementAndGet();
+      rejectedConnections.increment();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Call when a connection openConnection let in is closed
+   */
+  public void closeConnection() {
+    connections.decrementAndGet();
+  }
+
+  /**
+   * @return number of open connections
+   */
+  public int connections() {
+    return connections.get();
+  }
+
+  /**
+   * Limit, load and rejections in the Prometheus text format, for /metrics
+   */
+  public synchronized String render() {
+    StringBuilder out = new StringBuilder();
+    out.append("# HELP http_admission_limit Requests handled at the same time before new ones wait\n");
+    out.append("# TYPE http_admission_limit gauge\n");
+    out.append("http_admission_limit ").append(maxLimit <= 0 ? 0 : (int) limit).append('\n');
+    out.append("# HELP http_admission_waiting Requests waiting for a slot\n");
+    out.append("# TYPE http_admission_waiting gauge\n");
+    out.append("http_admission_waiting ").append(waiting).append('\n');
+    out.append("# HELP http_admission_rejected_total Requests answered with 503 because the server was busy\n");
+    out.append("# TYPE http_admission_rejected_total counter\n");
+    out.append("http_admission_rejected_total ").append(rejected.sum()).append('\n');
+    out.append("# HELP http_connections_rejected_total Connections closed right away because too many were open\n");
+    out.append("# TYPE http_connections_rejected_total counter\n");
+    out.append("http_connections_rejected_total ").append(rejectedConnections.sum()).append('\n');
+    return out.toString();
+  }
+}
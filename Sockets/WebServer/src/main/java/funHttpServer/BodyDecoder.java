@@ -0,0 +1,199 @@
+package funHttpServer;
+
+import java.io.IOException;
+
+/**
+ * Takes the bytes following a request header as they come off the socket and
+ * hands the body in them to a Sink, without the framing. A body either has a
+ * Content-Length or is sent with "Transfer-Encoding: chunked", as a series of
+ * "<hex size>\r\n<data>\r\n" chunks ending with a chunk of size 0 (and optional
+ * trailer fields).
+ *
+ * The decoder is a small state machine that never looks back at bytes it has
+ * seen, so a body can arrive in pieces of any size and nothing needs to be
+ * buffered while decoding. Both servers feed it straight from their read buffer.
+ */
+public class BodyDecoder {
+
+  /**
+   * Receives the body as it is decoded
+   */
+  public interface Sink {
+    /**
+     * @param data buffer holding the next body bytes, only valid during the call
+     * @param offset first body byte
+     * @param length number of body bytes
+     */
+    void accept(byte[] data, int offset, int length) throws IOException;
+  }
+
+  /**
+   * A sink collecting the body in memory, for routes that want the whole body
+   */
+  public static class Buffer implements Sink {
+    private byte[] bytes;
+    private int size;
+
+    /**
+     * @param expected the Content-Length, -1 if unknown
+     */
+    Buffer(long expected) {
+      bytes = new byte[(int) Math.max(0, Math.min(expected, 4096))];
+    }
+
+    @Override
+    public void accept(byte[] data, int offset, int length) throws IOException {
+      if (size + length > RequestParser.MAX_REQUEST_SIZE) {
+        throw new RequestParser.ParseException(413);
+      }
+      if (size + length > bytes.length) {
+        byte[] bigger = new byte[Math.max(size + length, 2 * bytes.length)];
+        System.arraycopy(bytes, 0, bigger, 0, size);
+        bytes = bigger;
+      }
+      System.arraycopy(data, offset, bytes, size, length);
+      size += length;
+    }
+
+    /**
+     * The collected body
+     */
+    byte[] bytes() {
+      if (size == bytes.length) {
+        return bytes;
+      }
+      byte[] exact = new byte[size];
+      System.arraycopy(bytes, 0, exact, 0, size);
+      return exact;
+    }
+  }
+
+  // states of the chunked decoder
+  private static final int SIZE = 0;
+  private static final int EXTENSION = 1;
+  private static final int DATA = 2;
+  private static final int DATA_END = 3;
+  private static final int TRAILER = 4;
+  private static final int DONE = 5;
+
+  /** Chunk sizes with more hex digits than this are refused, they would overflow */
+  private static final int MAX_SIZE_DIGITS = 15;
+
+  private final boolean chunked;
+  private int state;
+
+  /** Bytes left of the body (Content-Length) or of the current chunk */
+  private long remaining;
+
+  /** Hex digits read of the current chunk size */
+  private int digits;
+
+  /** Bytes on the current trailer line, an empty line ends the body */
+  private int lineLength;
+
+  /** Body bytes handed to the sink so far */
+  private long received;
+
+  /**
+   * @param contentLength the Content-Length of the request, -1 for a chunked body
+   */
+  public BodyDecoder(long contentLength) {
+    chunked = contentLength < 0;
+    if (chunked) {
+      state = SIZE;
+    } else {
+      remaining = contentLength;
+      state = contentLength > 0 ? DATA : DONE;
+    }
+  }
+
+  /**
+   * Decodes as much of the body as the bytes hold
+   * @param data the received bytes
+   * @param offset first byte that was not fed before
+   * @param limit end of the received bytes
+   * @param sink gets the body bytes
+   * @return number of bytes used. Less than offered only once the body is done,
+   *     the rest belongs to the next request.
+   * @throws RequestParser.ParseException if the chunk framing is broken
+   */
+  public int feed(byte[] data, int offset, int limit, Sink sink) throws IOException {
+    int i = offset;
+    while (i < limit && state != DONE) {
+      if (state == DATA) {
+        int length = (int) Math.min(remaining, limit - i);
+        sink.accept(data, i, length);
+        received += length;
+        remaining -= length;
+        i += length;
+        if (remaining == 0) {
+          state = chunked ? DATA_END : DONE;
+        }
+        continue;
+      }
+
+      byte b = data[i++];
+      switch (state) {
+        case SIZE:
+          int digit = Character.digit(b, 16);
+          if (digit >= 0) {
+            if (++digits > MAX_SIZE_DIGITS) {
+              throw new RequestParser.ParseException(400);
+            }
+            remaining = remaining * 16 + digit;
+          } else if (digits == 0) {
+            throw new RequestParser.ParseException(400);
+          } else if (b == '\n') {
+            endOfSize();
+          } else {
+            state = EXTENSION; // ";name=value" or the CR, both ignored
+          }
+          break;
+        case EXTENSION:
+          if (b == '\n') {
+            endOfSize();
+          }
+          break;
+        case DATA_END:
+          if (b == '\n') {
+            state = SIZE;
+          } else if (b != '\r') {
+            throw new RequestParser.ParseException(400);
+          }
+          break;
+        case TRAILER:
+          if (b == '\n') {
+            if (lineLength == 0) {
+              state = DONE;
+            }
+            lineLength = 0;
+          } else if (b != '\r') {
+            lineLength++;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return i - offset;
+  }
+
+  private void endOfSize() {
+    digits = 0;
+    state = remaining > 0 ? DATA : TRAILER;
+  }
+
+  /**
+   * @return true once the whole body was decoded
+   */
+  public boolean done() {
+    return state == DONE;
+  }
+
+  /**
+   * Number of body bytes decoded so far, without the chunk framing
+   */
+  public long received() {
+    return received;
+  }
+}
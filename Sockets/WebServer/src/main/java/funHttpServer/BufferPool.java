@@ -0,0 +1,81 @@
+package funHttpServer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers of one size that are handed back after use instead of becoming
+ * garbage. A streamed response takes a buffer per chunk, and without the pool
+ * every chunk of every response would be a fresh allocation.
+ *
+ * The pool keeps at most maxIdle buffers. When more are in use at the same time,
+ * new ones are allocated and the surplus is left to the garbage collector when
+ * it comes back, so a burst does not keep its memory forever.
+ *
+ * Direct buffers live outside the Java heap. The socket channels copy a heap
+ * buffer into a direct one before every write, a direct buffer goes to the
+ * kernel as it is. They are expensive to allocate, which is one more reason to
+ * pool them.
+ */
+public class BufferPool {
+  private final int bufferSize;
+  private final int maxIdle;
+  private final boolean direct;
+  private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  /**
+   * @param bufferSize capacity of every buffer
+   * @param maxIdle most buffers kept for reuse
+   */
+  public BufferPool(int bufferSize, int maxIdle) {
+    this(bufferSize, maxIdle, false);
+  }
+
+  /**
+   * @param bufferSize capacity of every buffer
+   * @param maxIdle most buffers kept for reuse
+   * @param direct whether the buffers are direct buffers
+   */
+  public BufferPool(int bufferSize, int maxIdle, boolean direct) {
+    this.bufferSize = bufferSize;
+    this.maxIdle = maxIdle;
+    this.direct = direct;
+  }
+
+  /**
+   * @return a cleared buffer, give it back with release once done
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = idle.poll();
+    if (buffer == null) {
+      return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+    idleCount.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Takes a buffer back. It must not be used by the caller afterwards.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+      return;
+    }
+    if (idleCount.incrementAndGet() > maxIdle) {
+      idleCount.decrementAndGet();
+      return;
+    }
+    idle.add(buffer);
+  }
+
+  /**
+   * Capacity of the buffers
+   */
+  public int bufferSize() {
+    return bufferSize;
+  }
+}
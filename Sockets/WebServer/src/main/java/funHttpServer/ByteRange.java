@@ -0,0 +1,75 @@
+package funHttpServer;
+
+/**
+ * A single byte range from a "Range: bytes=..." request header. We support one
+ * range per request, which is what download managers and media players send
+ * when they resume or seek. For anything else the whole file is sent.
+ */
+public class ByteRange {
+  /** The client asked for a range that lies completely behind the end of the file */
+  public static final ByteRange UNSATISFIABLE = new ByteRange(-1, 0);
+
+  /** First byte of the range */
+  public final long start;
+
+  /** Number of bytes in the range */
+  public final long length;
+
+  public ByteRange(long start, long length) {
+    this.start = start;
+    this.length = length;
+  }
+
+  /**
+   * Parses the value of a Range header, e.g. "bytes=0-499", "bytes=500-" or "bytes=-500"
+   * @param header the header value, may be null
+   * @param size size of the file in bytes
+   * @return the range, UNSATISFIABLE if it lies outside the file or null to send
+   *     the whole file (no, several or malformed ranges)
+   */
+  public static ByteRange parse(String header, long size) {
+    if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+
+    try {
+      long start;
+      long end;
+      if (dash == 0) {
+        // "-500" means the last 500 bytes
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix <= 0) {
+          return UNSATISFIABLE;
+        }
+        start = Math.max(0, size - suffix);
+        end = size - 1;
+      } else {
+        start = Long.parseLong(spec.substring(0, dash));
+        end = dash == spec.length() - 1 ? size - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1);
+      }
+
+      if (start >= size) {
+        return UNSATISFIABLE;
+      }
+      if (end < start) {
+        return null;
+      }
+      return new ByteRange(start, end - start + 1);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Value for the Content-Range header of a 206 response
+   * @param size size of the whole file
+   */
+  public String contentRange(long size) {
+    return "bytes " + start + "-" + (start + length - 1) + "/" + size;
+  }
+}
@@ -0,0 +1,151 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The stream a streamed response body is written to. Bytes are collected in a
+ * pooled buffer and every full buffer is sent as one chunk of the chunked
+ * transfer encoding: "<size in hex>\r\n<data>\r\n". close() sends the last
+ * chunk, "0\r\n\r\n", which tells the client the body is complete.
+ *
+ * The buffer leaves room for the size line in front of the data and the line
+ * ending after it, so a chunk goes to the socket as one piece without copying
+ * it again. The chunk is handed to a ChunkSink, which writes it (blocking
+ * server) or queues it for an event loop (NioServer) and gives the buffer back
+ * to the pool once it is on the wire.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+  /**
+   * Takes chunks ready to be written
+   */
+  public interface ChunkSink {
+    /**
+     * @param chunk the framed chunk between position and limit. The sink owns
+     *     the buffer and releases it to POOL when it is written.
+     */
+    void send(ByteBuffer chunk) throws IOException;
+  }
+
+  /** Buffers of all chunked responses, one chunk each */
+  static final BufferPool POOL = new BufferPool(16 * 1024, 256);
+
+  /** Room for the size line, the size is written as 4 hex digits */
+  private static final int SIZE_LINE = 6;
+
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private final ChunkSink sink;
+  private ByteBuffer buffer;
+  private boolean closed;
+
+  /**
+   * @param sink writes the chunks
+   */
+  public ChunkedOutputStream(ChunkSink sink) {
+    this.sink = sink;
+    this.buffer = newBuffer();
+  }
+
+  private static ByteBuffer newBuffer() {
+    ByteBuffer buffer = POOL.acquire();
+    buffer.position(SIZE_LINE);
+    return buffer;
+  }
+
+  /**
+   * Data bytes that still fit, keeping room for the line ending and the last chunk
+   */
+  private int room() {
+    return buffer.capacity() - buffer.position() - CRLF.length - LAST_CHUNK.length;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (room() == 0) {
+      send(false);
+    }
+    buffer.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] data, int offset, int length) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    while (length > 0) {
+      if (room() == 0) {
+        send(false);
+      }
+      int count = Math.min(length, room());
+      buffer.put(data, offset, count);
+      offset += count;
+      length -= count;
+    }
+  }
+
+  /**
+   * Sends what was written so far as a chunk, so the client sees it now and
+   * not only once a buffer is full
+   */
+  @Override
+  public void flush() throws IOException {
+    if (!closed && buffer.position() > SIZE_LINE) {
+      send(false);
+    }
+  }
+
+  /**
+   * Sends the rest of the body and the last chunk
+   */
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      send(true);
+      closed = true;
+    }
+  }
+
+  /**
+   * Gives the buffer back without ending the body, for a writer that failed.
+   * The client then sees a body that stops short instead of a complete one.
+   */
+  public void discard() {
+    if (buffer != null) {
+      POOL.release(buffer);
+      buffer = null;
+    }
+    closed = true;
+  }
+
+  private void send(boolean last) throws IOException {
+    int size = buffer.position() - SIZE_LINE;
+    int start = SIZE_LINE;
+    if (size > 0) {
+      start = 0;
+      for (int i = 0; i < 4; i++) {
+        buffer.put(i, HEX[(size >>> (12 - 4 * i)) & 0xf]);
+      }
+      buffer.put(4, CRLF[0]);
+      buffer.put(5, CRLF[1]);
+      buffer.put(CRLF);
+    }
+    if (last) {
+      buffer.put(LAST_CHUNK);
+    }
+    buffer.limit(buffer.position());
+    buffer.position(start);
+
+    ByteBuffer chunk = buffer;
+    buffer = last ? null : newBuffer();
+    sink.send(chunk);
+  }
+}
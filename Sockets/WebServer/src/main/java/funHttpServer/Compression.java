@@ -0,0 +1,210 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * gzip and deflate encoding of response bodies for clients that send a matching
+ * Accept-Encoding header. HTML and JSON shrink to a fraction of their size, which
+ * matters a lot more than the CPU spent on it when the network is the bottleneck.
+ *
+ * A Deflater holds a good chunk of native memory and is slow to set up, so we
+ * keep a few of them around and reset them between bodies instead of creating a
+ * new one per response. Bodies in memory are compressed in one go, bodies that
+ * are produced while they are sent go through an Encoder.
+ */
+public class Compression {
+  /** Bodies smaller than this are sent as they are, compressing them gains nothing */
+  static final int MIN_SIZE = 256;
+
+  /** Deflaters kept per format, more than that are created and thrown away */
+  static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+  private static final int LEVEL = 6;
+
+  /** Raw deflate streams, gzip adds its own header and trailer around them */
+  private static final Queue<Deflater> gzipDeflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+  /** zlib wrapped streams, which is what HTTP calls "deflate" */
+  private static final Queue<Deflater> zlibDeflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+  /** Fixed gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS */
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  /**
+   * Picks the encoding for a response
+   * @param acceptEncoding the request's Accept-Encoding header, may be null
+   * @return "gzip", "deflate" or null to send the body unencoded
+   */
+  public static String choose(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    boolean deflate = false;
+    for (String part : acceptEncoding.split(",")) {
+      // e.g. "gzip", "gzip;q=0.8" or "deflate;q=0" (q=0 means "not acceptable")
+      String[] params = part.split(";");
+      String coding = params[0].trim().toLowerCase();
+      boolean acceptable = true;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            acceptable = Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            acceptable = false;
+          }
+        }
+      }
+      if (acceptable && (coding.equals("gzip") || coding.equals("x-gzip"))) {
+        return "gzip";
+      }
+      if (acceptable && coding.equals("deflate")) {
+        deflate = true;
+      }
+    }
+    return deflate ? "deflate" : null;
+  }
+
+  /**
+   * Only text formats are worth compressing, images and archives already are
+   * @param contentType value of the Content-Type header
+   */
+  public static boolean compressible(String contentType) {
+    return contentType.startsWith("text/")
+        || contentType.startsWith("application/json")
+        || contentType.startsWith("application/javascript")
+        || contentType.startsWith("application/xml");
+  }
+
+  /**
+   * Encodes a body
+   * @param encoding "gzip" or "deflate"
+   * @param body the bytes to compress
+   * @return the encoded body
+   */
+  public static byte[] compress(String encoding, byte[] body) {
+    boolean gzip = encoding.equals("gzip");
+    Deflater deflater = take(gzip);
+
+    // text usually compresses to well below half its size
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 3 + 64);
+    try {
+      if (gzip) {
+        out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+      }
+
+      // run the body through the deflater one output block at a time
+      byte[] block = new byte[8192];
+      deflater.setInput(body);
+      deflater.finish();
+      while (!deflater.finished()) {
+        int length = deflater.deflate(block);
+        out.write(block, 0, length);
+      }
+
+      if (gzip) {
+        // trailer: CRC32 and length of the uncompressed body, little endian
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, body.length);
+      }
+    } finally {
+      release(gzip, deflater);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Encodes a body while it is written, see Encoder
+   * @param encoding "gzip" or "deflate"
+   * @param out where the encoded body goes
+   */
+  public static Encoder encoder(String encoding, OutputStream out) throws IOException {
+    return new Encoder(encoding.equals("gzip"), out);
+  }
+
+  /**
+   * Compresses what is written to it with a Deflater from the pool. Flushing
+   * sends everything written so far (a sync flush), so a streamed page does not
+   * wait for a full block. close finishes the encoded body and gives the
+   * Deflater back, the stream underneath stays open. release gives it back
+   * without finishing, for a body that broke off.
+   */
+  public static class Encoder extends DeflaterOutputStream {
+    private final boolean gzip;
+    private final CRC32 crc = new CRC32();
+    private int length;
+    private boolean released;
+
+    private Encoder(boolean gzip, OutputStream out) throws IOException {
+      super(out, take(gzip), 8192, true);
+      this.gzip = gzip;
+      if (gzip) {
+        out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+      }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int count) throws IOException {
+      super.write(data, offset, count);
+      if (gzip) {
+        crc.update(data, offset, count);
+      }
+      length += count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (released) {
+        return;
+      }
+      try {
+        finish();
+        if (gzip) {
+          // trailer: CRC32 and length of the uncompressed body, little endian
+          ByteArrayOutputStream trailer = new ByteArrayOutputStream(8);
+          writeIntLE(trailer, (int) crc.getValue());
+          writeIntLE(trailer, length);
+          trailer.writeTo(out);
+        }
+        out.flush();
+      } finally {
+        release();
+      }
+    }
+
+    public void release() {
+      if (!released) {
+        released = true;
+        Compression.release(gzip, def);
+      }
+    }
+  }
+
+  private static Deflater take(boolean gzip) {
+    Deflater deflater = (gzip ? gzipDeflaters : zlibDeflaters).poll();
+    return deflater != null ? deflater : new Deflater(LEVEL, gzip);
+  }
+
+  private static void release(boolean gzip, Deflater deflater) {
+    deflater.reset();
+    if (!(gzip ? gzipDeflaters : zlibDeflaters).offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  private static void writeIntLE(ByteArrayOutputStream out, int value) {
+    out.write(value);
+    out.write(value >>> 8);
+    out.write(value >>> 16);
+    out.write(value >>> 24);
+  }
+}
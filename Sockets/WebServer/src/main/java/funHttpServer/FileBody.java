@@ -0,0 +1,64 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A response body that is (a region of) a file on disk. The bytes are never
+ * loaded onto the heap: FileChannel.transferTo hands them to the socket, which
+ * on Linux becomes a sendfile call where the kernel copies straight from the page
+ * cache to the socket. Serving a big download this way costs the same memory
+ * as serving a small one.
+ */
+public class FileBody {
+  final File file;
+  final long offset;
+  final long length;
+
+  /**
+   * @param file the file to send
+   * @param offset first byte to send
+   * @param length number of bytes to send
+   */
+  public FileBody(File file, long offset, long length) {
+    this.file = file;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  FileChannel open() throws IOException {
+    return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  }
+
+  /**
+   * Sends the whole region to a blocking channel
+   * @param target the socket's channel (zero copy) or a channel wrapping a stream
+   * @throws IOException if writing fails or the file got shorter meanwhile
+   */
+  public void transferTo(WritableByteChannel target) throws IOException {
+    try (FileChannel channel = open()) {
+      long position = offset;
+      long end = offset + length;
+      while (position < end) {
+        position += transfer(channel, position, end, target);
+      }
+    }
+  }
+
+  /**
+   * One transferTo call, used by the blocking and the non-blocking writers
+   * @return the number of bytes written, 0 if a non-blocking target is full
+   */
+  static long transfer(FileChannel channel, long position, long end, WritableByteChannel target)
+      throws IOException {
+    long written = channel.transferTo(position, end - position, target);
+    if (written == 0 && position >= channel.size()) {
+      // we promised more bytes in Content-Length than the file has now
+      throw new IOException("File got shorter while sending it");
+    }
+    return written;
+  }
+}
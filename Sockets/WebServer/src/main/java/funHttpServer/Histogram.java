@@ -0,0 +1,143 @@
+package funHttpServer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram that many threads can record into at the same time.
+ *
+ * Values (microseconds) are counted in buckets that grow exponentially: every
+ * power of two is split into 8 sub-buckets, so a bucket is at most 12.5% wider
+ * than the values in it. That is precise enough for percentiles and the whole
+ * range from 1us to hours fits into a few hundred counters.
+ *
+ * Recording is a few atomic adds. To keep threads on different cores from
+ * fighting over the same counters, every thread records into one of several
+ * stripes, handed out round robin the first time the thread records. The
+ * stripes are only added up when the histogram is read.
+ */
+public class Histogram {
+  /** Sub-buckets per power of two, as bits */
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /** Values up to 2^40us (about 12 days) have their own bucket, larger ones go to the last */
+  private static final int MAX_EXPONENT = 40;
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+  /** Number of stripes, the number of cores rounded up to a power of two */
+  private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+  /** Stripe of the next thread that records */
+  private static final AtomicInteger nextStripe = new AtomicInteger();
+
+  /** Stripe of the current thread */
+  private static final ThreadLocal<Integer> STRIPE =
+      ThreadLocal.withInitial(() -> nextStripe.getAndIncrement() & (STRIPES - 1));
+
+  /** Counts per bucket, per stripe. The last two slots of a stripe hold the count and the sum */
+  private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+  public Histogram() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new AtomicLongArray(BUCKETS + 2);
+    }
+  }
+
+  /**
+   * @param micros the measured value, negative values count as 0
+   */
+  public void record(long micros) {
+    long value = Math.max(0, micros);
+    AtomicLongArray stripe = stripes[STRIPE.get()];
+    stripe.incrementAndGet(bucket(value));
+    stripe.incrementAndGet(BUCKETS);
+    stripe.addAndGet(BUCKETS + 1, value);
+  }
+
+  /**
+   * Index of the bucket a value is counted in
+   */
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value; // small values are exact
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    // the bits right after the highest one pick the sub-bucket
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * Largest value counted in a bucket
+   */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+
+  /**
+   * The stripes added up, a consistent enough view for reporting
+   */
+  public Snapshot snapshot() {
+    long[] counts = new long[BUCKETS + 2];
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += stripe.get(i);
+      }
+    }
+    return new Snapshot(counts);
+  }
+
+  /**
+   * Counts of a histogram at one point in time
+   */
+  public static class Snapshot {
+    private final long[] counts;
+
+    Snapshot(long[] counts) {
+      this.counts = counts;
+    }
+
+    /** Number of recorded values */
+    public long count() {
+      return counts[BUCKETS];
+    }
+
+    /** Sum of the recorded values */
+    public long sum() {
+      return counts[BUCKETS + 1];
+    }
+
+    /**
+     * @param quantile e.g. 0.99
+     * @return the value that quantile of the recorded values is at or below,
+     *     0 if nothing was recorded
+     */
+    public long quantile(double quantile) {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        total += counts[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return upperBound(i);
+        }
+      }
+      return upperBound(BUCKETS - 1);
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The parts of an HTTP request the server cares about: the request line, the
+ * header fields and the body.
+ *
+ * A request keeps the raw bytes it was parsed from together with the offsets
+ * RequestParser found in them. The method and path are needed for every request
+ * and are turned into Strings right away, header values only when a route asks
+ * for them.
+ */
+public class HttpRequest {
+  private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS"};
+
+  /** e.g. GET */
+  final String method;
+
+  /** The path without the leading "/" and the query, e.g. "multiply", null if the request line is broken */
+  final String path;
+
+  /** The target after the "?", e.g. "num1=3&num2=4", null if there is none */
+  final String query;
+
+  /** Part of the path after a prefix route, set by the Router */
+  String pathInfo;
+
+  /** Name of the route that matched, e.g. "/json", set by the Router */
+  String route;
+
+  /** Content-Length of the body, -1 if it is sent chunked, 0 if there is none */
+  final long bodyLength;
+
+  /**
+   * The body of a POST, null if the request has none or a streaming route
+   * consumed it
+   */
+  byte[] body;
+
+  /** Body bytes received, set once the body was read */
+  long received;
+
+  /** Whether the client wants the connection to stay open */
+  private final boolean keepAlive;
+
+  /** Whether the client speaks HTTP/1.1 (and knows chunked bodies) */
+  final boolean http11;
+
+  /** The header and the offsets of its fields, see RequestParser.fields */
+  private final byte[] raw;
+  private final int[] fields;
+  private final int requestLineStart;
+  private final int requestLineEnd;
+
+  /** Decoded query (and form body) parameters, split on first use */
+  private Map<String, String> params;
+
+  HttpRequest(RequestParser parser, byte[] raw, int[] fields) {
+    this.raw = raw;
+    this.fields = fields;
+    this.method = method(raw, parser.methodStart, parser.methodEnd);
+    this.path = parser.pathStart < 0 ? null : string(raw, parser.pathStart, parser.pathEnd);
+    this.query = parser.queryStart < 0 ? null : string(raw, parser.queryStart, parser.queryEnd);
+    this.bodyLength = parser.contentLength;
+    this.keepAlive = parser.keepAlive;
+    this.http11 = parser.http11;
+    this.requestLineStart = parser.methodStart;
+    this.requestLineEnd = parser.versionEnd;
+  }
+
+  /**
+   * Reads one request from the stream. Servers reading several requests from a
+   * connection keep a RequestParser per connection instead.
+   * @param in stream positioned at the start of a request
+   * @return the request or null if the stream ended before a request started
+   * @throws IOException if reading fails or the request is too large
+   */
+  public static HttpRequest read(InputStream in) throws IOException {
+    return new RequestParser().read(in);
+  }
+
+  /**
+   * The known methods are shared constants, no need for a new String each time
+   */
+  private static String method(byte[] raw, int start, int end) {
+    for (String method : METHODS) {
+      if (matches(raw, start, end, method)) {
+        return method;
+      }
+    }
+    return string(raw, start, end);
+  }
+
+  private static boolean matches(byte[] raw, int start, int end, String ascii) {
+    if (end - start != ascii.length()) {
+      return false;
+    }
+    for (int i = 0; i < ascii.length(); i++) {
+      if (raw[start + i] != ascii.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String string(byte[] raw, int start, int end) {
+    return new String(raw, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The first line of the request, e.g. "GET /json HTTP/1.1"
+   */
+  public String requestLine() {
+    return string(raw, requestLineStart, requestLineEnd);
+  }
+
+  /**
+   * Query parameters of the request, e.g. {num1=3, num2=4} for "multiply?num1=3&num2=4".
+   * The fields of a form sent with POST (application/x-www-form-urlencoded) are
+   * included.
+   * @return the decoded parameters, empty if there are none
+   * @throws UnsupportedEncodingException If the URLs aren't encoded with UTF-8
+   */
+  public Map<String, String> params() throws UnsupportedEncodingException {
+    if (params == null) {
+      params = query == null || query.isEmpty() ? Collections.emptyMap() : WebServer.splitQuery(query);
+      if (body != null && isForm()) {
+        Map<String, String> all = new LinkedHashMap<>(params);
+        all.putAll(WebServer.splitQuery(new String(body, StandardCharsets.UTF_8)));
+        params = all;
+      }
+    }
+    return params;
+  }
+
+  /**
+   * @param name header name in lower case
+   * @return the header value or null if the client did not send it
+   */
+  public String header(String name) {
+    for (int i = 0; i < fields.length; i += 4) {
+      if (RequestParser.equalsIgnoreCase(raw, fields[i], fields[i + 1], name)) {
+        return string(raw, fields[i + 2], fields[i + 3]);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Number of bytes the client sent for this request, header and body
+   */
+  public long size() {
+    return raw.length + received;
+  }
+
+  /**
+   * @return true if a body follows the header
+   */
+  public boolean hasBody() {
+    return bodyLength != 0;
+  }
+
+  /**
+   * @return true if the body is a form (application/x-www-form-urlencoded),
+   *     whose fields are part of params()
+   */
+  public boolean isForm() {
+    String type = header("content-type");
+    return type != null && type.startsWith("application/x-www-form-urlencoded");
+  }
+
+  /**
+   * HTTP/1.1 connections stay open unless the client says "Connection: close",
+   * HTTP/1.0 clients have to ask for "Connection: keep-alive"
+   */
+  public boolean keepAlive() {
+    return keepAlive;
+  }
+}
@@ -0,0 +1,516 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A response built by one of the routes. Keeping the body apart from the header
+ * lets us add a correct Content-Length and the Connection header when the
+ * response is turned into bytes, which is what allows a client to send several
+ * requests over the same connection.
+ *
+ * The body is either a byte array, a FileBody, which is streamed from disk
+ * without loading it into memory, or a channel the body is read from while it
+ * is written, for bodies that are produced piece by piece.
+ *
+ * A route that does not know the size of its body up front can return a
+ * BodyWriter instead. The header goes out right away with "Transfer-Encoding:
+ * chunked" and the writer's output follows in chunks while it is written, so
+ * the client sees the first bytes before the last ones are produced and the
+ * body never has to be in memory as a whole.
+ */
+public class HttpResponse {
+  static final String TEXT_HTML = "text/html; charset=utf-8";
+  static final String APPLICATION_JSON = "application/json; charset=utf-8";
+
+  /**
+   * Produces a body that is sent while it is written
+   */
+  public interface BodyWriter {
+    /**
+     * @param out the body, every full buffer goes out as a chunk. Flushing
+     *     sends what was written so far.
+     */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Takes over the connection after a "101 Switching Protocols" answer
+   */
+  public interface Upgrade {
+    /**
+     * @param channel the connection, the 101 is written and HTTP is over on it
+     */
+    void take(SocketChannel channel);
+  }
+
+  final int status;
+  final String contentType;
+
+  /** The body in memory, null if the body is a file or streamed */
+  final byte[] body;
+
+  /** The body on disk, null if the body is in memory or streamed */
+  final FileBody file;
+
+  /** The body as it is produced, null if the body is in memory or a file */
+  final ReadableByteChannel stream;
+
+  /** Number of bytes the stream delivers */
+  private final long streamLength;
+
+  /** Writes the body as chunks, null if the body is not chunked */
+  final BodyWriter writer;
+
+  /** Set for HEAD requests: the header describes the body but the body is not sent */
+  boolean headOnly;
+
+  /**
+   * Name of the StaticCache entry the body came from, null for dynamic bodies.
+   * Encoded variants of such a body are cached next to it.
+   */
+  String cacheKey;
+
+  /** Validators of the body, sent as ETag and Last-Modified when set */
+  String etag;
+  long lastModified;
+
+  /** Set for a 101 answer: gets the connection once the answer is written */
+  Upgrade upgrade;
+
+  /** Additional header fields, kept in the order they were added */
+  final Map<String, String> headers = new LinkedHashMap<>();
+
+  /**
+   * @param status HTTP status code, e.g. 200
+   * @param contentType value of the Content-Type header
+   * @param body the response body
+   */
+  public HttpResponse(int status, String contentType, byte[] body) {
+    this.status = status;
+    this.contentType = contentType;
+    this.body = body;
+    this.file = null;
+    this.stream = null;
+    this.streamLength = 0;
+    this.writer = null;
+  }
+
+  /**
+   * Response with a text body, encoded as UTF-8
+   */
+  public HttpResponse(int status, String contentType, String body) {
+    this(status, contentType, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Response streaming (a region of) a file
+   */
+  public HttpResponse(int status, String contentType, FileBody file) {
+    this.status = status;
+    this.contentType = contentType;
+    this.body = null;
+    this.file = file;
+    this.stream = null;
+    this.streamLength = 0;
+    this.writer = null;
+  }
+
+  /**
+   * Response with a body that is read from the channel while it is sent. The
+   * channel is closed once the body is out or the connection is gone.
+   * @param stream delivers the body, read until it returns -1
+   * @param length number of bytes the stream delivers
+   */
+  public HttpResponse(int status, String contentType, ReadableByteChannel stream, long length) {
+    this.status = status;
+    this.contentType = contentType;
+    this.body = null;
+    this.file = null;
+    this.stream = stream;
+    this.streamLength = length;
+    this.writer = null;
+  }
+
+  /**
+   * Response with a chunked body, produced by the writer while it is sent
+   */
+  public HttpResponse(int status, String contentType, BodyWriter writer) {
+    this.status = status;
+    this.contentType = contentType;
+    this.body = null;
+    this.file = null;
+    this.stream = null;
+    this.streamLength = 0;
+    this.writer = writer;
+  }
+
+  /**
+   * Adds a header field to the response
+   * @return this response so calls can be chained
+   */
+  public HttpResponse header(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * Copy of this response with an encoded body, e.g. gzip compressed
+   * @param encoding value of the Content-Encoding header
+   * @param encodedBody the encoded bytes
+   */
+  public HttpResponse encoded(String encoding, byte[] encodedBody) {
+    return encoded(encoding, new HttpResponse(status, contentType, encodedBody));
+  }
+
+  /**
+   * Copy of this chunked response whose writer produces the encoded body
+   * @param encoding value of the Content-Encoding header
+   * @param encodedWriter writes the encoded body
+   */
+  public HttpResponse encoded(String encoding, BodyWriter encodedWriter) {
+    return encoded(encoding, new HttpResponse(status, contentType, encodedWriter));
+  }
+
+  private HttpResponse encoded(String encoding, HttpResponse response) {
+    response.headers.putAll(headers);
+    response.headOnly = headOnly;
+    response.lastModified = lastModified;
+    if (etag != null) {
+      // a strong ETag belongs to exactly one representation
+      response.etag = Validators.variant(etag, encoding);
+    }
+    return response.header("Content-Encoding", encoding);
+  }
+
+  /**
+   * The 304 answer for a client whose copy of this response is still current.
+   * It carries the validators but no body.
+   */
+  public HttpResponse notModified() {
+    HttpResponse response = new HttpResponse(304, contentType, new byte[0]);
+    response.etag = etag;
+    response.lastModified = lastModified;
+    String vary = headers.get("Vary");
+    if (vary != null) {
+      response.header("Vary", vary);
+    }
+    return response;
+  }
+
+  /**
+   * Number of bytes in the body, -1 for a chunked body whose size nobody knows
+   * before it is written
+   */
+  public long contentLength() {
+    if (writer != null) {
+      return -1;
+    }
+    if (file != null) {
+      return file.length;
+    }
+    return stream != null ? streamLength : body.length;
+  }
+
+  /**
+   * Status line and header fields, ending with the empty line
+   * @param keepAlive whether the connection stays open after this response
+   */
+  public byte[] head(boolean keepAlive) {
+    for (int size = 512; ; size *= 2) {
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      try {
+        writeHead(buffer, keepAlive);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+      } catch (BufferOverflowException e) {
+        // many or long header fields, try again with more room
+      }
+    }
+  }
+
+  /**
+   * Puts the status line and header fields into a buffer. The status line, the
+   * Content-Type line and the fixed fields are encoded once and copied from
+   * then on, numbers are written digit by digit, so this allocates nothing
+   * for the common responses.
+   * @param target the buffer, e.g. a pooled direct buffer
+   * @param keepAlive whether the connection stays open after this response
+   * @throws BufferOverflowException if the header does not fit
+   */
+  public void writeHead(ByteBuffer target, boolean keepAlive) {
+    target.put(STATUS_LINES.computeIfAbsent(status, HttpResponse::statusLine));
+    if (status == 101) {
+      // no body and no connection handling, the Upgrade fields say what comes next
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        putField(target, header.getKey(), header.getValue());
+      }
+      target.put(CRLF);
+      return;
+    }
+    target.put(CONTENT_TYPES.computeIfAbsent(contentType, type -> ascii("Content-Type: " + type + "\r\n")));
+    if (writer != null) {
+      target.put(CHUNKED);
+    } else if (status != 304) {
+      // a 304 has no body, a length here would describe the body it stands for
+      target.put(CONTENT_LENGTH);
+      putNumber(target, contentLength());
+      target.put(CRLF);
+    }
+    target.put(keepAlive ? KEEP_ALIVE : CLOSE);
+    if (etag != null) {
+      putField(target, "ETag", etag);
+    }
+    if (lastModified > 0) {
+      putField(target, "Last-Modified", Validators.httpDate(lastModified));
+    }
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      putField(target, header.getKey(), header.getValue());
+    }
+    target.put(CRLF);
+  }
+
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+  private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+  private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+  private static final byte[] CLOSE = ascii("Connection: close\r\n");
+
+  /** Encoded status lines and Content-Type lines, filled as they are used */
+  private static final Map<Integer, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+  private static final Map<String, byte[]> CONTENT_TYPES = new ConcurrentHashMap<>();
+
+  private static byte[] statusLine(int status) {
+    return ascii("HTTP/1.1 " + status + " " + reason(status) + "\r\n");
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Puts "name: value\r\n". Header fields are ASCII, a value that is not is
+   * sent as UTF-8.
+   */
+  private static void putField(ByteBuffer target, String name, String value) {
+    putText(target, name);
+    target.put((byte) ':').put((byte) ' ');
+    putText(target, value);
+    target.put(CRLF);
+  }
+
+  private static void putText(ByteBuffer target, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        target.put(text.substring(i).getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      target.put((byte) c);
+    }
+  }
+
+  /**
+   * Puts the decimal digits of a number that is not negative
+   */
+  private static void putNumber(ByteBuffer target, long value) {
+    long divisor = 1;
+    while (divisor <= value / 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      target.put((byte) ('0' + value / divisor % 10));
+    }
+  }
+
+  /**
+   * Status line, header and body in one array. A file or streamed body is read into
+   * memory here, so the servers use writeTo instead.
+   * @param keepAlive whether the connection stays open after this response
+   * @return the byte encoded HTTP response
+   */
+  public byte[] toBytes(boolean keepAlive) {
+    byte[] head = head(keepAlive);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(head.length + (headOnly ? 0 : (int) Math.max(0, contentLength())));
+    out.write(head, 0, head.length);
+    if (!headOnly) {
+      try {
+        writeBody(out, null);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    } else {
+      closeStream();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the response to a blocking connection
+   * @param out the connection's (buffered) output stream
+   * @param channel the connection's channel if it has one, file bodies are
+   *     then sent without copying them through the heap
+   * @param keepAlive whether the connection stays open after this response
+   */
+  public void writeTo(OutputStream out, WritableByteChannel channel, boolean keepAlive) throws IOException {
+    if (channel instanceof GatheringByteChannel) {
+      // header and an in-memory body from pooled direct buffers, see ResponseBuffers
+      out.flush();
+      ResponseBuffers buffers = new ResponseBuffers(this, keepAlive);
+      try {
+        buffers.writeTo((GatheringByteChannel) channel);
+      } finally {
+        buffers.release();
+      }
+      if (!headOnly && body == null) {
+        writeBody(out, channel);
+      } else if (headOnly) {
+        closeStream();
+      }
+      return;
+    }
+    out.write(head(keepAlive));
+    if (!headOnly) {
+      writeBody(out, channel);
+    } else {
+      closeStream();
+    }
+  }
+
+  /**
+   * Closes a streamed body that will not be sent
+   */
+  void closeStream() {
+    if (stream != null) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void writeBody(OutputStream out, WritableByteChannel channel) throws IOException {
+    if (writer != null) {
+      // the header goes out before the writer starts
+      out.flush();
+      writeChunks(out);
+    } else if (stream != null) {
+      // the header must be on the wire before we write around the stream
+      out.flush();
+      WritableByteChannel target = channel != null ? channel : Channels.newChannel(out);
+      ByteBuffer buffer = ResponseBuffers.BODIES.acquire();
+      try {
+        long left = streamLength;
+        while (left > 0) {
+          buffer.clear();
+          int count = stream.read(buffer);
+          if (count < 0) {
+            throw new IOException("Stream ended before Content-Length bytes");
+          }
+          left -= count;
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            target.write(buffer);
+          }
+        }
+      } finally {
+        ResponseBuffers.BODIES.release(buffer);
+        closeStream();
+      }
+    } else if (file == null) {
+      out.write(body);
+    } else {
+      // the header must be on the wire before we write around the stream
+      out.flush();
+      file.transferTo(channel != null ? channel : Channels.newChannel(out));
+    }
+  }
+
+  /**
+   * Runs the writer, every full chunk goes to the stream right away
+   */
+  private void writeChunks(OutputStream out) throws IOException {
+    ChunkedOutputStream chunks = new ChunkedOutputStream(chunk -> {
+      try {
+        out.write(chunk.array(), chunk.position(), chunk.remaining());
+        out.flush();
+      } finally {
+        ChunkedOutputStream.POOL.release(chunk);
+      }
+    });
+    try {
+      writer.writeTo(chunks);
+      chunks.close();
+    } catch (RuntimeException e) {
+      // a broken route must not take the accept loop down with it
+      throw new IOException("Writing the body failed", e);
+    } finally {
+      chunks.discard();
+    }
+  }
+
+  /**
+   * Copy of a chunked response with the body in memory, for HTTP/1.0 clients,
+   * which do not know the chunked encoding
+   */
+  public HttpResponse buffered() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.writeTo(out);
+    HttpResponse response = new HttpResponse(status, contentType, out.toByteArray());
+    response.headers.putAll(headers);
+    response.etag = etag;
+    response.lastModified = lastModified;
+    return response;
+  }
+
+  /**
+   * Reason phrase for the status codes we use
+   */
+  static String reason(int status) {
+    switch (status) {
+      case 101:
+        return "Switching Protocols";
+      case 200:
+        return "OK";
+      case 206:
+        return "Partial Content";
+      case 304:
+        return "Not Modified";
+      case 400:
+        return "Bad Request";
+      case 404:
+        return "Not Found";
+      case 413:
+        return "Payload Too Large";
+      case 416:
+        return "Range Not Satisfiable";
+      case 426:
+        return "Upgrade Required";
+      case 431:
+        return "Request Header Fields Too Large";
+      case 500:
+        return "Internal Server Error";
+      case 501:
+        return "Not Implemented";
+      case 502:
+        return "Bad Gateway";
+      case 503:
+        return "Service Unavailable";
+      default:
+        return "Unknown";
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Pushes the random image to every page that subscribed over a WebSocket at
+ * /images, instead of every page asking /json again and again.
+ *
+ * Every interval the feed picks an image and sends it to all subscribers. The
+ * message is encoded into a frame once and every subscriber gets a view of the
+ * same bytes. A new subscriber gets the current image right away.
+ *
+ * All WebSocket connections live on one thread with its own Selector, whichever
+ * engine accepted them: once the 101 answer is written, the connection is
+ * handed over here. The thread reads the client's frames (answering pings and
+ * close), writes what is queued for each subscriber as far as its socket takes
+ * it, and pings every subscriber every PING_MILLIS. A subscriber that does not
+ * answer in two rounds is disconnected.
+ *
+ * A subscriber that reads slower than the images come gets at most MAX_QUEUED
+ * images queued. When another one arrives, the oldest queued image that is not
+ * being written yet is dropped: only the newest image matters, so a slow page
+ * skips images instead of the server buffering them without end.
+ */
+public class ImageFeed implements Runnable, HttpResponse.Upgrade {
+  /** Images queued per subscriber before the oldest is dropped */
+  static final int MAX_QUEUED = 4;
+
+  /** How often subscribers are pinged */
+  static final int PING_MILLIS = 30 * 1000;
+
+  /** Bytes read from a subscriber at a time, control frames are at most 131 bytes */
+  static final int READ_BUFFER_SIZE = 512;
+
+  /** First byte of an image frame, a complete text message */
+  private static final byte TEXT_FRAME = (byte) (0x80 | WebSocket.TEXT);
+
+  /**
+   * One WebSocket connection
+   */
+  static class Subscriber {
+    final SocketChannel channel;
+    final Queue<ByteBuffer> out = new ArrayDeque<>();
+    final WebSocket.Decoder decoder = new WebSocket.Decoder();
+    final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    int queuedImages;
+    long lastSeen = System.currentTimeMillis();
+    boolean closing;
+
+    Subscriber(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private final Supplier<String> picker;
+  private final long intervalMillis;
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final ByteBuffer ping = WebSocket.frame(WebSocket.PING, new byte[0]);
+  private ByteBuffer current;
+  private int subscribers;
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * @param picker picks the next image, as the JSON message sent to the pages
+   * @param intervalSeconds how often a new image is pushed
+   */
+  public ImageFeed(Supplier<String> picker, int intervalSeconds) {
+    this.picker = picker;
+    this.intervalMillis = Math.max(1, intervalSeconds) * 1000L;
+    try {
+      this.selector = Selector.open();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Thread thread = new Thread(this, "image-feed");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Takes a connection whose 101 answer was written, from any thread
+   */
+  @Override
+  public void take(SocketChannel channel) {
+    tasks.add(() -> {
+      try {
+        channel.configureBlocking(false);
+        Subscriber subscriber = new Subscriber(channel);
+        channel.register(selector, SelectionKey.OP_READ, subscriber);
+        subscribers++;
+        if (current == null) {
+          current = encode(picker.get());
+        }
+        send(channel.keyFor(selector), current);
+      } catch (IOException e) {
+        close(channel);
+      }
+    });
+    selector.wakeup();
+  }
+
+  private static ByteBuffer encode(String message) {
+    return WebSocket.frame(WebSocket.TEXT, message.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void run() {
+    long nextImage = System.currentTimeMillis() + intervalMillis;
+    long nextPing = System.currentTimeMillis() + PING_MILLIS;
+    while (selector.isOpen()) {
+      try {
+        long now = System.currentTimeMillis();
+        selector.select(Math.max(1, Math.min(nextImage, nextPing) - now));
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              read(key);
+            }
+            if (key.isValid() && key.isWritable()) {
+              write(key);
+            }
+          } catch (IOException e) {
+            close(key.channel());
+          }
+        }
+
+        now = System.currentTimeMillis();
+        if (now >= nextImage) {
+          nextImage = now + intervalMillis;
+          if (subscribers > 0) {
+            current = encode(picker.get());
+            broadcast(current);
+          }
+        }
+        if (now >= nextPing) {
+          nextPing = now + PING_MILLIS;
+          pingAll(now);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void broadcast(ByteBuffer frame) {
+    for (SelectionKey key : selector.keys()) {
+      if (key.isValid()) {
+        send(key, frame);
+      }
+    }
+  }
+
+  /**
+   * Pings everybody and drops subscribers that did not answer the last two pings
+   */
+  private void pingAll(long now) {
+    for (SelectionKey key : selector.keys()) {
+      Subscriber subscriber = (Subscriber) key.attachment();
+      if (!key.isValid()) {
+        continue;
+      }
+      if (now - subscriber.lastSeen > 2L * PING_MILLIS) {
+        close(key.channel());
+      } else {
+        send(key, ping);
+      }
+    }
+  }
+
+  /**
+   * Queues a frame for one subscriber and starts writing it. Every subscriber
+   * gets its own view of the frame's bytes.
+   */
+  private void send(SelectionKey key, ByteBuffer frame) {
+    Subscriber subscriber = (Subscriber) key.attachment();
+    if (subscriber.closing) {
+      return;
+    }
+    boolean image = frame.get(0) == TEXT_FRAME;
+    if (image && subscriber.queuedImages >= MAX_QUEUED) {
+      dropOldestImage(subscriber);
+    }
+    subscriber.out.add(frame.duplicate());
+    if (image) {
+      subscriber.queuedImages++;
+    }
+    try {
+      write(key);
+    } catch (IOException e) {
+      close(key.channel());
+    }
+  }
+
+  /**
+   * Slow consumer: drops the oldest image that has not started going out. The
+   * one being written has to be finished, a half frame would break the stream.
+   */
+  private void dropOldestImage(Subscriber subscriber) {
+    Iterator<ByteBuffer> frames = subscriber.out.iterator();
+    while (frames.hasNext()) {
+      ByteBuffer frame = frames.next();
+      if (frame.get(0) == TEXT_FRAME && frame.position() == 0) {
+        frames.remove();
+        subscriber.queuedImages--;
+        dropped.increment();
+        return;
+      }
+    }
+  }
+
+  private void write(SelectionKey key) throws IOException {
+    Subscriber subscriber = (Subscriber) key.attachment();
+    while (!subscriber.out.isEmpty()) {
+      ByteBuffer frame = subscriber.out.peek();
+      subscriber.channel.write(frame);
+      if (frame.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+      subscriber.out.poll();
+      if (frame.get(0) == TEXT_FRAME) {
+        subscriber.queuedImages--;
+      }
+    }
+    if (subscriber.closing) {
+      close(key.channel());
+    } else {
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  private void read(SelectionKey key) throws IOException {
+    Subscriber subscriber = (Subscriber) key.attachment();
+    if (subscriber.channel.read(subscriber.in) < 0) {
+      close(key.channel());
+      return;
+    }
+    subscriber.lastSeen = System.currentTimeMillis();
+    subscriber.in.flip();
+    boolean valid = subscriber.decoder.feed(subscriber.in, (opcode, payload) -> {
+      if (opcode == WebSocket.PING) {
+        send(key, WebSocket.frame(WebSocket.PONG, payload));
+      } else if (opcode == WebSocket.CLOSE) {
+        // answer the close and hang up once it is written
+        send(key, WebSocket.frame(WebSocket.CLOSE, payload.length >= 2 ? new byte[] {payload[0], payload[1]} : payload));
+        subscriber.closing = true;
+      }
+      // pongs only count as a sign of life, messages from the page are ignored
+    });
+    subscriber.in.compact();
+    if (!valid) {
+      // 1002: protocol error
+      send(key, WebSocket.frame(WebSocket.CLOSE, new byte[] {0x03, (byte) 0xEA}));
+      subscriber.closing = true;
+    }
+    if (subscriber.closing && key.isValid() && subscriber.out.isEmpty()) {
+      close(key.channel());
+    }
+  }
+
+  private void close(SelectableChannel channel) {
+    SelectionKey key = channel.keyFor(selector);
+    if (key != null && key.isValid()) {
+      key.cancel();
+      subscribers--;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Says goodbye to every subscriber (close 1001, going away), for a shutdown.
+   * The connections close once the close frames are written.
+   */
+  public void close() {
+    tasks.add(() -> {
+      ByteBuffer goingAway = WebSocket.frame(WebSocket.CLOSE, new byte[] {0x03, (byte) 0xE9});
+      for (SelectionKey key : selector.keys()) {
+        Subscriber subscriber = (Subscriber) key.attachment();
+        if (key.isValid() && !subscriber.closing) {
+          send(key, goingAway);
+          subscriber.closing = true;
+          if (key.isValid() && subscriber.out.isEmpty()) {
+            close(key.channel());
+          }
+        }
+      }
+    });
+    selector.wakeup();
+  }
+
+  /**
+   * Subscribers and dropped images in the Prometheus text format, for /metrics
+   */
+  public String render() {
+    return "# HELP websocket_subscribers Pages subscribed to /images\n"
+        + "# TYPE websocket_subscribers gauge\n"
+        + "websocket_subscribers " + selector.keys().size() + "\n"
+        + "# HELP websocket_dropped_images_total Images a slow subscriber skipped\n"
+        + "# TYPE websocket_dropped_images_total counter\n"
+        + "websocket_dropped_images_total " + dropped.sum() + "\n";
+  }
+}
@@ -0,0 +1,146 @@
+package funHttpServer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters, bytes in and out and latency per route, served at /metrics
+ * in the Prometheus text format so a Prometheus server (or just curl) can see
+ * which routes are busy and which are slow.
+ *
+ * Everything is recorded with LongAdders and striped histograms, so threads
+ * answering requests at the same time hardly ever touch the same counter.
+ */
+public class Metrics {
+  /** Content type of the Prometheus text format */
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  /** Route name of requests no route matched */
+  static final String UNMATCHED = "unmatched";
+
+  /** Quantiles reported for every route */
+  private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+  /**
+   * Everything recorded for one route
+   */
+  public static class Route {
+    final LongAdder[] statusClasses = new LongAdder[6];
+    final LongAdder inFlight = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final Histogram latency = new Histogram();
+
+    Route() {
+      for (int i = 0; i < statusClasses.length; i++) {
+        statusClasses[i] = new LongAdder();
+      }
+    }
+
+    /**
+     * Call when a request for this route starts
+     * @param bytes size of the request
+     */
+    public void start(long bytes) {
+      inFlight.increment();
+      bytesIn.add(bytes);
+    }
+
+    /**
+     * Call when the response for a started request is ready
+     * @param status status of the response
+     * @param bytes body bytes of the response
+     * @param startNanos System.nanoTime() when the request started
+     */
+    public void finish(int status, long bytes, long startNanos) {
+      inFlight.decrement();
+      statusClasses[Math.min(5, Math.max(0, status / 100))].increment();
+      bytesOut.add(bytes);
+      latency.record((System.nanoTime() - startNanos) / 1000);
+    }
+  }
+
+  private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+  /**
+   * @param name route name, e.g. "/json"
+   * @return the metrics of the route, created on first use
+   */
+  public Route route(String name) {
+    Route route = routes.get(name);
+    return route != null ? route : routes.computeIfAbsent(name, n -> new Route());
+  }
+
+  /**
+   * All metrics in the Prometheus text format
+   */
+  public String render() {
+    StringBuilder out = new StringBuilder(4096);
+    // sorted so the routes always come in the same order
+    Map<String, Route> sorted = new TreeMap<>(routes);
+
+    header(out, "http_requests_total", "counter", "Requests answered, by route and status class");
+    for (Map.Entry<String, Route> route : sorted.entrySet()) {
+      for (int i = 1; i < route.getValue().statusClasses.length; i++) {
+        long count = route.getValue().statusClasses[i].sum();
+        if (count > 0) {
+          out.append("http_requests_total{route=\"").append(escape(route.getKey()))
+              .append("\",code=\"").append(i).append("xx\"} ").append(count).append('\n');
+        }
+      }
+    }
+
+    header(out, "http_requests_in_flight", "gauge", "Requests currently being answered");
+    for (Map.Entry<String, Route> route : sorted.entrySet()) {
+      sample(out, "http_requests_in_flight", route.getKey(), route.getValue().inFlight.sum());
+    }
+
+    header(out, "http_request_bytes_total", "counter", "Bytes received in requests, header and body");
+    for (Map.Entry<String, Route> route : sorted.entrySet()) {
+      sample(out, "http_request_bytes_total", route.getKey(), route.getValue().bytesIn.sum());
+    }
+
+    header(out, "http_response_bytes_total", "counter", "Body bytes sent in responses");
+    for (Map.Entry<String, Route> route : sorted.entrySet()) {
+      sample(out, "http_response_bytes_total", route.getKey(), route.getValue().bytesOut.sum());
+    }
+
+    header(out, "http_request_duration_seconds", "summary", "Time from reading a request to having its response ready");
+    for (Map.Entry<String, Route> route : sorted.entrySet()) {
+      String name = escape(route.getKey());
+      Histogram.Snapshot snapshot = route.getValue().latency.snapshot();
+      for (double quantile : QUANTILES) {
+        out.append("http_request_duration_seconds{route=\"").append(name)
+            .append("\",quantile=\"").append(quantile).append("\"} ")
+            .append(seconds(snapshot.quantile(quantile))).append('\n');
+      }
+      out.append("http_request_duration_seconds_sum{route=\"").append(name).append("\"} ")
+          .append(seconds(snapshot.sum())).append('\n');
+      out.append("http_request_duration_seconds_count{route=\"").append(name).append("\"} ")
+          .append(snapshot.count()).append('\n');
+    }
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder out, String name, String route, long value) {
+    out.append(name).append("{route=\"").append(escape(route)).append("\"} ").append(value).append('\n');
+  }
+
+  private static String seconds(long micros) {
+    return Double.toString(micros / 1_000_000.0);
+  }
+
+  /**
+   * Label values escape backslash, quote and newline
+   */
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,1017 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking version of the accept loop in WebServer.
+ *
+ * One acceptor thread takes new connections from a ServerSocketChannel and hands
+ * them round robin to a fixed set of event loops. Every event loop owns a Selector
+ * and only touches a connection when the selector says it is readable or writable.
+ * Bytes are read into a buffer the event loop reuses for every connection and
+ * parsed there by the loop's RequestParser, then the request is handed to the same
+ * handler the blocking server uses. Only when a request arrives in pieces, the
+ * part received so far is copied into a buffer of its own connection.
+ *
+ * A client that sends slowly (or not at all) therefore only costs a selection key
+ * and, once it sent something, a small buffer. It never blocks other clients.
+ *
+ * Connections stay open between requests (HTTP/1.1 keep-alive) until the client
+ * closes them or stays idle longer than the configured keep alive time. When a
+ * client pipelines several requests, they are answered one after the other and
+ * the responses are queued in the same order.
+ *
+ * With an executor, the handlers run on the executor instead of the event loop.
+ * A slow route like /github then only delays its own connection, the loop keeps
+ * reading and writing for everybody else. Each connection has at most one request
+ * on the executor at a time so pipelined responses still go out in order.
+ *
+ * File bodies are written with FileChannel.transferTo in as many steps as the
+ * socket takes, so a big download neither blocks the loop nor sits in memory.
+ * Headers and bodies in memory go out from pooled direct buffers with gathering
+ * writes (ResponseBuffers), streamed bodies through a pooled buffer as well.
+ *
+ * Request bodies go through a BodyDecoder as they are read. Bodies for routes
+ * that stream them (POST /wordcount and /reverse) are handed to the route's
+ * BodyConsumer piece by piece, on the event loop, and never buffered, so an
+ * upload of any size costs the memory of the read buffer. Other bodies are
+ * collected up to MAX_REQUEST_SIZE and handled with the request as before.
+ *
+ * Chunked response bodies (HttpResponse.BodyWriter) are written on the executor
+ * thread that built the response. The header goes out first and every chunk is
+ * handed to the loop as soon as it is full, with at most MAX_QUEUED_CHUNKS
+ * waiting per connection. Without an executor the writer runs on the loop and
+ * its chunks are written as far as the socket takes them, the rest is queued.
+ *
+ * The server's AdmissionControl bounds the open connections: the acceptor
+ * answers a connection over the limit with 503 and closes it. Requests are
+ * admitted in WebServer.handle; on the loop they never wait for a slot. The
+ * idle check also closes connections whose header takes longer than
+ * headerTimeout to arrive (one byte now and then does not keep a connection
+ * open) and connections whose response did not move for writeTimeout.
+ *
+ * With --reusePort there is no acceptor thread. Every event loop opens a
+ * listening channel of its own on the port (SO_REUSEPORT) and accepts on its
+ * own selector. The kernel spreads the connections over the channels, so
+ * accepting runs on all cores and a connection stays on the loop that accepted
+ * it, without a queue between threads. Where the option is missing, the single
+ * acceptor above is used.
+ */
+public class NioServer {
+  /** Size of the read buffer shared by the connections of an event loop */
+  static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  /** Size of the buffer a connection gets for a request that arrives in pieces */
+  static final int INITIAL_BUFFER_SIZE = 2048;
+
+  /** Largest header, or body of a route that does not stream it, we buffer for one connection */
+  static final int MAX_REQUEST_SIZE = RequestParser.MAX_REQUEST_SIZE;
+
+  /** Pending connections the kernel may queue while the acceptor is busy */
+  static final int BACKLOG = 1024;
+
+  /** How often the event loops look for idle connections */
+  static final int IDLE_CHECK_MILLIS = 1000;
+
+  /** Chunks of a streamed body that may wait for the socket before the writer has to wait */
+  static final int MAX_QUEUED_CHUNKS = 4;
+
+  private final WebServer server;
+  private final EventLoop[] loops;
+  private final boolean reusePort;
+
+  /**
+   * @param server handles the requests once they are read
+   * @param config number of event loops and keep alive time
+   * @param executor runs the handlers, null to run them on the event loops
+   */
+  public NioServer(WebServer server, ServerConfig config, ExecutorService executor) throws IOException {
+    this.server = server;
+    this.reusePort = config.reusePort;
+    loops = new EventLoop[Math.max(1, config.workers)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop(server, config.keepAlive * 1000L, executor);
+    }
+  }
+
+  /**
+   * Starts the event loops and accepts connections until the channel is closed
+   * @param port to listen on
+   */
+  public void serve(int port) throws IOException {
+    if (reusePort && !reusePortSupported()) {
+      System.out.println("SO_REUSEPORT is not supported here, using a single acceptor");
+    } else if (reusePort) {
+      for (EventLoop loop : loops) {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        channel.bind(new InetSocketAddress(port), BACKLOG);
+        server.listening(channel);
+        loop.listen(channel);
+      }
+      for (int i = 0; i < loops.length; i++) {
+        new Thread(loops[i], "event-loop-" + i).start();
+      }
+      System.out.println("NIO server listening on port " + port + " with " + loops.length
+          + " event loops, each accepting on its own socket");
+      return;
+    }
+
+    for (int i = 0; i < loops.length; i++) {
+      new Thread(loops[i], "event-loop-" + i).start();
+    }
+
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    channel.bind(new InetSocketAddress(port), BACKLOG);
+    server.listening(channel);
+    System.out.println("NIO server listening on port " + port + " with " + loops.length + " event loops");
+
+    // accept is cheap compared to reading and writing, so a blocking accept on
+    // this thread is enough. All the per connection work happens in the loops.
+    int next = 0;
+    while (channel.isOpen()) {
+      SocketChannel client;
+      try {
+        client = channel.accept();
+      } catch (IOException e) {
+        if (server.draining) {
+          return; // drain closed the channel
+        }
+        throw e;
+      }
+      if (!server.admission.openConnection()) {
+        server.refuse(client.socket());
+        continue;
+      }
+      loops[next].register(client);
+      next = (next + 1) % loops.length;
+    }
+  }
+
+  /**
+   * @return true if several server sockets can listen on the same port
+   */
+  static boolean reusePortSupported() {
+    try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+      return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Something waiting to be written to a connection
+   */
+  interface Pending {
+    /**
+     * Writes as much as the socket takes right now
+     * @return true once everything is written
+     */
+    boolean writeTo(SocketChannel channel) throws IOException;
+
+    /** Frees what this holds, called when written or when the connection closes */
+    default void release() {
+    }
+  }
+
+  /**
+   * Bytes in memory, like the status line and header or a small body
+   */
+  static class PendingBytes implements Pending {
+    private final ByteBuffer buffer;
+
+    PendingBytes(byte[] bytes) {
+      buffer = ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+      channel.write(buffer);
+      return !buffer.hasRemaining();
+    }
+  }
+
+  /**
+   * A header, and a body in memory, in pooled direct buffers
+   */
+  static class PendingBuffers implements Pending {
+    private final ResponseBuffers buffers;
+
+    PendingBuffers(ResponseBuffers buffers) {
+      this.buffers = buffers;
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+      return buffers.writeTo(channel);
+    }
+
+    @Override
+    public void release() {
+      buffers.release();
+    }
+  }
+
+  /**
+   * One chunk of a chunked body in a pooled buffer, given back when written
+   */
+  static class PendingChunk implements Pending {
+    private final ByteBuffer chunk;
+
+    /** The writer's permits for queued chunks, null if the writer does not wait */
+    private final Semaphore credits;
+
+    PendingChunk(ByteBuffer chunk, Semaphore credits) {
+      this.chunk = chunk;
+      this.credits = credits;
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+      channel.write(chunk);
+      return !chunk.hasRemaining();
+    }
+
+    @Override
+    public void release() {
+      ChunkedOutputStream.POOL.release(chunk);
+      if (credits != null) {
+        credits.release();
+      }
+    }
+  }
+
+  /**
+   * A streamed body, read from its channel into a buffer whenever the socket
+   * took everything read before
+   */
+  static class PendingStream implements Pending {
+    private final HttpResponse response;
+    private final ByteBuffer buffer = ResponseBuffers.BODIES.acquire();
+    private long left;
+
+    PendingStream(HttpResponse response) {
+      this.response = response;
+      this.left = response.contentLength();
+      buffer.flip();
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+      while (true) {
+        if (!buffer.hasRemaining()) {
+          if (left == 0) {
+            return true;
+          }
+          buffer.clear();
+          int count = response.stream.read(buffer);
+          if (count < 0) {
+            throw new IOException("Stream ended before Content-Length bytes");
+          }
+          left -= count;
+          buffer.flip();
+        }
+        channel.write(buffer);
+        if (buffer.hasRemaining()) {
+          return false;
+        }
+      }
+    }
+
+    @Override
+    public void release() {
+      ResponseBuffers.BODIES.release(buffer);
+      response.closeStream();
+    }
+  }
+
+  /**
+   * A file region sent with transferTo, the file is opened on the first write
+   */
+  static class PendingFile implements Pending {
+    private final FileBody body;
+    private FileChannel file;
+    private long position;
+
+    PendingFile(FileBody body) {
+      this.body = body;
+      this.position = body.offset;
+    }
+
+    @Override
+    public boolean writeTo(SocketChannel channel) throws IOException {
+      if (file == null) {
+        file = body.open();
+      }
+      long end = body.offset + body.length;
+      position += FileBody.transfer(file, position, end, channel);
+      return position >= end;
+    }
+
+    @Override
+    public void release() {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * State kept for every open connection. The read buffer is only allocated while
+   * the client is in the middle of sending something, so idle connections stay small.
+   */
+  static class Connection {
+    /** Part of a request received so far, null while the loop's read buffer is used */
+    ByteBuffer in;
+
+    /** Responses waiting to be written, oldest first */
+    final Queue<Pending> out = new ArrayDeque<>();
+
+    /** Position up to which we already searched for the end of the header */
+    int scanned;
+
+    /** Request whose body is being received, null between requests */
+    HttpRequest request;
+
+    /** Decodes the body of the request, null between requests */
+    BodyDecoder body;
+
+    /** Gets the decoded body: the route's consumer or a buffer */
+    BodyDecoder.Sink sink;
+
+    /** System.nanoTime() when the header of the request was read */
+    long start;
+
+    /** Set once we answered a request that does not keep the connection open */
+    boolean closeAfterWrite;
+
+    /** Set once we answered with 101, takes the connection when the answer is out */
+    HttpResponse.Upgrade upgrade;
+
+    /** Set while a request of this connection runs on the executor */
+    boolean busy;
+
+    /** When the first bytes of the header that is coming in arrived, 0 between requests */
+    long headerStart;
+
+    /** When the body that is coming in has to be complete, moves as its bytes arrive */
+    long bodyDeadline;
+
+    /** Last time the client sent or received something */
+    long lastActive = System.currentTimeMillis();
+
+    /** Address of the client, for the access log */
+    final InetAddress remote;
+
+    Connection(InetAddress remote) {
+      this.remote = remote;
+    }
+  }
+
+  /**
+   * A single selector thread serving many connections
+   */
+  static class EventLoop implements Runnable {
+    private final WebServer server;
+    private final long keepAliveMillis;
+    private final ExecutorService executor;
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> completed = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final RequestParser parser = new RequestParser();
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    EventLoop(WebServer server, long keepAliveMillis, ExecutorService executor) throws IOException {
+      this.server = server;
+      this.keepAliveMillis = keepAliveMillis;
+      this.executor = executor;
+      this.selector = Selector.open();
+    }
+
+    /**
+     * Called from the acceptor thread. Channels can only be registered safely
+     * from the loop's own thread, so we queue them and wake the selector up.
+     */
+    void register(SocketChannel channel) {
+      pending.add(channel);
+      selector.wakeup();
+    }
+
+    /**
+     * Lets this loop accept connections from a listening channel of its own,
+     * call before the loop runs
+     */
+    void listen(ServerSocketChannel channel) throws IOException {
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+      while (selector.isOpen()) {
+        try {
+          selector.select(IDLE_CHECK_MILLIS);
+          registerPending();
+          runCompleted();
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            try {
+              if (key.isValid() && key.isAcceptable()) {
+                accept(key);
+                continue;
+              }
+              if (key.isValid() && key.isReadable()) {
+                read(key);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(key);
+              }
+            } catch (IOException e) {
+              // the client went away, nothing else to do for it
+              close(key);
+            }
+          }
+          closeIdle();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    private void registerPending() {
+      SocketChannel channel;
+      while ((channel = pending.poll()) != null) {
+        add(channel);
+      }
+    }
+
+    /**
+     * Takes the connections waiting on this loop's own listening channel
+     */
+    private void accept(SelectionKey key) {
+      ServerSocketChannel listener = (ServerSocketChannel) key.channel();
+      try {
+        SocketChannel channel;
+        while ((channel = listener.accept()) != null) {
+          if (server.admission.openConnection()) {
+            add(channel);
+          } else {
+            server.refuse(channel.socket()); // still in blocking mode
+          }
+        }
+      } catch (IOException e) {
+        // e.g. out of file descriptors, the listener stays registered for the next try
+        e.printStackTrace();
+      }
+    }
+
+    /**
+     * Starts serving a new connection on this loop
+     */
+    private void add(SocketChannel channel) {
+      try {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel.socket().getInetAddress()));
+      } catch (IOException e) {
+        e.printStackTrace();
+        server.admission.closeConnection();
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+
+    /**
+     * Sends the responses the executor finished since the last select
+     */
+    private void runCompleted() {
+      Runnable task;
+      while ((task = completed.poll()) != null) {
+        task.run();
+      }
+    }
+
+    /**
+     * Closes connections nobody used for longer than the keep alive time, and
+     * stalled ones: a header that takes too long, a body that arrives slower
+     * than MIN_BODY_RATE or a response the client does not take. While the
+     * server drains, connections that wait for a request are closed as well.
+     * A busy connection is only checked for its response: the client of a
+     * streamed body has to keep taking it while the writer runs.
+     */
+    private void closeIdle() {
+      long now = System.currentTimeMillis();
+      if (now - lastIdleCheck < IDLE_CHECK_MILLIS) {
+        return;
+      }
+      lastIdleCheck = now;
+      long timeout = Math.max(keepAliveMillis, IDLE_CHECK_MILLIS);
+      for (SelectionKey key : selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        if (!key.isValid() || conn == null) {
+          continue; // conn is null for the listening channel
+        }
+        if (conn.busy && conn.out.isEmpty()) {
+          continue; // the executor is working on the response
+        }
+        boolean stalled;
+        if (!conn.out.isEmpty()) {
+          stalled = now - conn.lastActive > server.writeTimeoutMillis;
+        } else if (conn.body != null) {
+          stalled = now > conn.bodyDeadline;
+        } else if (server.draining) {
+          // waiting for a request (or the rest of its header), none is coming
+          stalled = true;
+        } else if (conn.headerStart != 0) {
+          stalled = now - conn.headerStart > server.headerTimeoutMillis;
+        } else {
+          stalled = now - conn.lastActive > timeout;
+        }
+        if (stalled) {
+          close(key);
+        }
+      }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection conn = (Connection) key.attachment();
+
+      if (conn.in == null) {
+        // borrow the loop's buffer, most requests arrive in one read
+        readBuffer.clear();
+        conn.in = readBuffer;
+      } else if (!conn.in.hasRemaining()) {
+        if (conn.in.capacity() >= MAX_REQUEST_SIZE) {
+          reject(key, conn, 431, "Request header too large");
+          return;
+        }
+        grow(conn, conn.in.capacity() * 2);
+      }
+
+      if (channel.read(conn.in) < 0) {
+        close(key);
+        return;
+      }
+      conn.lastActive = System.currentTimeMillis();
+      try {
+        process(key, conn);
+      } finally {
+        keepLeftover(conn);
+      }
+    }
+
+    /**
+     * The loop's buffer is needed for the next connection. Bytes of a request
+     * that is not complete yet move to a buffer of their own.
+     */
+    private void keepLeftover(Connection conn) {
+      if (conn.in != readBuffer) {
+        return;
+      }
+      if (readBuffer.position() == 0) {
+        conn.in = null;
+        return;
+      }
+      conn.in = ByteBuffer.allocate(Math.max(INITIAL_BUFFER_SIZE, 2 * readBuffer.position()));
+      readBuffer.flip();
+      conn.in.put(readBuffer);
+      readBuffer.clear();
+    }
+
+    /**
+     * Answers every complete request in the read buffer, pipelined ones included,
+     * and starts writing the responses
+     */
+    private void process(SelectionKey key, Connection conn) throws IOException {
+      while (conn.in != null && !conn.closeAfterWrite && !conn.busy && conn.upgrade == null) {
+        if (conn.body != null) {
+          // in the middle of a body, hand over what arrived of it
+          int used;
+          try {
+            used = conn.body.feed(conn.in.array(), 0, conn.in.position(), conn.sink);
+          } catch (RequestParser.ParseException e) {
+            abortBody(conn);
+            reject(key, conn, e.status, e.getMessage());
+            return;
+          } catch (IOException e) {
+            e.printStackTrace();
+            abortBody(conn);
+            reject(key, conn, 500, HttpResponse.reason(500));
+            return;
+          }
+          consume(conn, used);
+          received(conn, used);
+          if (!conn.body.done()) {
+            break; // wait for the rest of the body
+          }
+          if (finishBody(key, conn)) {
+            return;
+          }
+          continue;
+        }
+
+        byte[] data = conn.in.array();
+        int end = RequestParser.headerEnd(data, conn.scanned, conn.in.position());
+        if (end < 0) {
+          conn.scanned = conn.in.position();
+          if (conn.headerStart == 0) {
+            conn.headerStart = System.currentTimeMillis();
+          }
+          break; // wait for the rest of the header
+        }
+        conn.headerStart = 0;
+
+        int status = parser.parse(data, end);
+        if (status != 0) {
+          reject(key, conn, status, HttpResponse.reason(status));
+          return;
+        }
+        HttpRequest request = parser.request(data);
+        consume(conn, end);
+        long start = System.nanoTime();
+        if (request.hasBody()) {
+          Router.BodyConsumer consumer = server.stream(request);
+          if (consumer == null && request.bodyLength > MAX_REQUEST_SIZE) {
+            reject(key, conn, 413, "Request too large");
+            return;
+          }
+          conn.request = request;
+          conn.body = new BodyDecoder(request.bodyLength);
+          conn.sink = consumer != null ? consumer : new BodyDecoder.Buffer(request.bodyLength);
+          conn.start = start;
+          conn.bodyDeadline = System.currentTimeMillis() + server.bodyTimeoutMillis;
+          continue;
+        }
+        if (dispatch(key, conn, request, start)) {
+          return;
+        }
+      }
+
+      if (!conn.out.isEmpty()) {
+        // stop reading until the responses are out, pipelined requests wait in
+        // the socket buffer meanwhile
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key);
+      }
+    }
+
+    /**
+     * Every byte of a body moves its deadline by 1/MIN_BODY_RATE seconds, but
+     * never more than bodyTimeout ahead. A client trickling its body runs out of
+     * time, however often it sends a byte.
+     */
+    private void received(Connection conn, int bytes) {
+      long limit = System.currentTimeMillis() + server.bodyTimeoutMillis;
+      conn.bodyDeadline = Math.min(limit, conn.bodyDeadline + bytes * 1000L / WebServer.MIN_BODY_RATE);
+    }
+
+    /**
+     * The body of the connection's request is complete, answer the request
+     * @return true if the request went to the executor
+     */
+    private boolean finishBody(SelectionKey key, Connection conn) {
+      HttpRequest request = conn.request;
+      request.received = conn.body.received();
+      BodyDecoder.Sink sink = conn.sink;
+      conn.request = null;
+      conn.body = null;
+      conn.sink = null;
+      if (sink instanceof BodyDecoder.Buffer) {
+        request.body = ((BodyDecoder.Buffer) sink).bytes();
+        return dispatch(key, conn, request, conn.start);
+      }
+      HttpResponse response = server.finish(request, (Router.BodyConsumer) sink, conn.start, false);
+      server.log(conn.remote, request, response, conn.start);
+      queue(key, conn, response, keepAliveMillis > 0 && request.keepAlive() && !server.draining);
+      return false;
+    }
+
+    /**
+     * Frees what the consumer of a body that will not complete holds
+     */
+    private void abortBody(Connection conn) {
+      if (conn.sink instanceof Router.BodyConsumer) {
+        ((Router.BodyConsumer) conn.sink).abort();
+      }
+      conn.request = null;
+      conn.body = null;
+      conn.sink = null;
+    }
+
+    /**
+     * Answers a complete request, on the loop or on the executor
+     * @return true if the request went to the executor
+     */
+    private boolean dispatch(SelectionKey key, Connection conn, HttpRequest request, long start) {
+      boolean keepAlive = keepAliveMillis > 0 && request.keepAlive() && !server.draining;
+      if (executor != null) {
+        handleLater(key, conn, request, keepAlive, start);
+        return true;
+      }
+      HttpResponse response = server.handle(request, false);
+      server.log(conn.remote, request, response, start);
+      queue(key, conn, response, keepAlive);
+      return false;
+    }
+
+    /**
+     * Runs the handler on the executor. The connection is not read from until the
+     * response is back on the loop, which keeps pipelined responses in order.
+     */
+    private void handleLater(SelectionKey key, Connection conn, HttpRequest request, boolean keepAlive,
+        long start) {
+      conn.busy = true;
+      key.interestOps(0);
+      executor.execute(() -> {
+        HttpResponse response = server.handle(request);
+        server.log(conn.remote, request, response, start);
+        if (response.writer != null && !response.headOnly) {
+          streamLater(key, conn, response, keepAlive);
+          return;
+        }
+        // connections are only touched by their loop, so hand the result back
+        completed.add(() -> {
+          conn.busy = false;
+          if (!key.isValid()) {
+            return;
+          }
+          queue(key, conn, response, keepAlive);
+          try {
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+          } catch (IOException e) {
+            close(key);
+          }
+        });
+        selector.wakeup();
+      });
+    }
+
+    /**
+     * Runs the writer of a chunked body on the executor thread that built the
+     * response. The header is queued right away, then every full chunk. Once
+     * MAX_QUEUED_CHUNKS wait to be written, the writer waits for the socket, so
+     * a slow client holds the writer back instead of piling up chunks. A
+     * client that takes no chunk for writeTimeout is disconnected. The
+     * connection stays busy until the writer is done.
+     */
+    private void streamLater(SelectionKey key, Connection conn, HttpResponse response, boolean keepAlive) {
+      Semaphore credits = new Semaphore(MAX_QUEUED_CHUNKS);
+      onLoop(key, new PendingBuffers(new ResponseBuffers(response, keepAlive)));
+      ChunkedOutputStream chunks = new ChunkedOutputStream(chunk -> {
+        // wait for the socket, but not for a client that is gone or stalled
+        boolean queued = false;
+        long deadline = System.currentTimeMillis() + server.writeTimeoutMillis;
+        try {
+          long wait;
+          while (key.isValid() && !queued && (wait = deadline - System.currentTimeMillis()) > 0) {
+            queued = credits.tryAcquire(Math.min(wait, IDLE_CHECK_MILLIS), TimeUnit.MILLISECONDS);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (!queued) {
+          ChunkedOutputStream.POOL.release(chunk);
+          if (key.isValid()) {
+            completed.add(() -> {
+              if (key.isValid()) {
+                close(key);
+              }
+            });
+            selector.wakeup();
+            throw new InterruptedIOException("Client took no data for " + server.writeTimeoutMillis + "ms");
+          }
+          throw new InterruptedIOException("Connection closed");
+        }
+        onLoop(key, new PendingChunk(chunk, credits));
+      });
+
+      boolean complete = false;
+      try {
+        response.writer.writeTo(chunks);
+        chunks.close();
+        complete = true;
+      } catch (IOException | RuntimeException e) {
+        if (key.isValid()) {
+          e.printStackTrace();
+        }
+      } finally {
+        chunks.discard();
+      }
+
+      // a body that broke off cannot be followed by another response
+      boolean close = !complete || !keepAlive;
+      completed.add(() -> {
+        conn.busy = false;
+        conn.closeAfterWrite |= close;
+        if (!key.isValid()) {
+          return;
+        }
+        try {
+          key.interestOps(SelectionKey.OP_WRITE);
+          write(key);
+        } catch (IOException e) {
+          close(key);
+        }
+      });
+      selector.wakeup();
+    }
+
+    /**
+     * Hands output produced on the executor to the loop and starts writing it
+     */
+    private void onLoop(SelectionKey key, Pending pending) {
+      completed.add(() -> {
+        if (!key.isValid()) {
+          pending.release();
+          return;
+        }
+        ((Connection) key.attachment()).out.add(pending);
+        try {
+          key.interestOps(SelectionKey.OP_WRITE);
+          write(key);
+        } catch (IOException e) {
+          close(key);
+        }
+      });
+      selector.wakeup();
+    }
+
+    /**
+     * Without an executor the writer of a chunked body runs right here. The loop
+     * must not wait for the socket, so the chunks are written as far as the
+     * socket takes them and the rest is queued.
+     * @return false if the writer failed and the body broke off
+     */
+    private boolean writeChunks(SelectionKey key, Connection conn, HttpResponse response) {
+      SocketChannel channel = (SocketChannel) key.channel();
+      ChunkedOutputStream chunks = new ChunkedOutputStream(chunk -> {
+        conn.out.add(new PendingChunk(chunk, null));
+        writePending(channel, conn);
+      });
+      try {
+        writePending(channel, conn); // the header goes out before the writer starts
+        response.writer.writeTo(chunks);
+        chunks.close();
+        return true;
+      } catch (IOException | RuntimeException e) {
+        e.printStackTrace();
+        return false;
+      } finally {
+        chunks.discard();
+      }
+    }
+
+    /**
+     * Adds a response to the connection's output, in request order
+     */
+    private void queue(SelectionKey key, Connection conn, HttpResponse response, boolean keepAlive) {
+      // the header, with the body if it is in memory
+      conn.out.add(new PendingBuffers(new ResponseBuffers(response, keepAlive)));
+      if (!response.headOnly) {
+        if (response.writer != null) {
+          if (!writeChunks(key, conn, response)) {
+            keepAlive = false;
+          }
+        } else if (response.file != null) {
+          conn.out.add(new PendingFile(response.file));
+        } else if (response.stream != null) {
+          conn.out.add(new PendingStream(response));
+        }
+      }
+      if (response.headOnly) {
+        response.closeStream();
+      }
+      // nothing after a 101 is HTTP any more
+      conn.upgrade = response.upgrade;
+      if (!keepAlive) {
+        conn.closeAfterWrite = true;
+      }
+    }
+
+    /**
+     * Drops the first bytes of the read buffer, keeping whatever follows them
+     */
+    private void consume(Connection conn, int count) {
+      conn.in.flip();
+      conn.in.position(count);
+      conn.in.compact();
+      conn.scanned = 0;
+      if (conn.in.position() == 0) {
+        conn.in = null; // nothing buffered, let the connection go back to idle size
+      }
+    }
+
+    private void grow(Connection conn, int capacity) {
+      ByteBuffer bigger = ByteBuffer.allocate(Math.min(capacity, MAX_REQUEST_SIZE));
+      conn.in.flip();
+      bigger.put(conn.in);
+      conn.in = bigger;
+    }
+
+    /**
+     * Answers with an error and closes the connection afterwards
+     */
+    private void reject(SelectionKey key, Connection conn, int status, String message) throws IOException {
+      conn.in = null;
+      conn.closeAfterWrite = true;
+      conn.out.add(new PendingBytes(new HttpResponse(status, HttpResponse.TEXT_HTML, message).toBytes(false)));
+      key.interestOps(SelectionKey.OP_WRITE);
+      write(key);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection conn = (Connection) key.attachment();
+
+      if (!writePending(channel, conn)) {
+        return; // socket buffer is full, the selector tells us when to go on
+      }
+
+      if (conn.upgrade != null) {
+        handOver(key, conn);
+      } else if (conn.closeAfterWrite) {
+        close(key);
+      } else if (conn.busy) {
+        // the executor is still producing the response, don't read meanwhile
+        key.interestOps(0);
+      } else {
+        key.interestOps(SelectionKey.OP_READ);
+        // requests that were pipelined behind the ones we just answered
+        process(key, conn);
+      }
+    }
+
+    /**
+     * Writes queued output as far as the socket takes it
+     * @return true once the queue is empty
+     */
+    private boolean writePending(SocketChannel channel, Connection conn) throws IOException {
+      while (!conn.out.isEmpty()) {
+        boolean done = conn.out.peek().writeTo(channel);
+        conn.lastActive = System.currentTimeMillis();
+        if (!done) {
+          return false;
+        }
+        conn.out.poll().release();
+      }
+      return true;
+    }
+
+    /**
+     * Gives a connection whose 101 answer is written to the new protocol. It
+     * leaves this loop and no longer counts as an HTTP connection.
+     */
+    private void handOver(SelectionKey key, Connection conn) {
+      key.cancel();
+      server.admission.closeConnection();
+      conn.upgrade.take((SocketChannel) key.channel());
+    }
+
+    private void close(SelectionKey key) {
+      Connection conn = (Connection) key.attachment();
+      abortBody(conn);
+      Pending pending;
+      while ((pending = conn.out.poll()) != null) {
+        pending.release();
+      }
+      key.cancel();
+      server.admission.closeConnection();
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,469 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses HTTP requests straight from the bytes that came off the socket.
+ *
+ * Reading a request line by line into Strings (and a map of header Strings)
+ * creates a dozen objects per request that are garbage right after the response
+ * is out. This parser instead walks the bytes once and remembers where the
+ * method, path, query, version and every header name and value start and end.
+ * Nothing is allocated while parsing and the parser itself is reused for every
+ * request of a connection (blocking server) or of an event loop (NioServer).
+ *
+ * Only when a request is handed to the routes, its bytes are copied into one
+ * array of the HttpRequest together with the offsets. Strings are created there
+ * on demand, e.g. when a route asks for a header.
+ *
+ * Requests with a body (POST) send a Content-Length or a chunked body. The
+ * parser only reads the header, the body is decoded by a BodyDecoder afterwards:
+ * either into HttpRequest.body (up to MAX_REQUEST_SIZE) or, for routes that
+ * stream it, piece by piece into the route's BodyConsumer.
+ */
+public class RequestParser {
+  /** Largest header, and largest body we buffer instead of streaming it to a route */
+  static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+  /** Most header fields we accept in one request */
+  static final int MAX_HEADERS = 100;
+
+  /** Size of the read buffer of the blocking server */
+  static final int INITIAL_BUFFER_SIZE = 2048;
+
+  /**
+   * A request we cannot answer normally, e.g. one that is too large
+   */
+  public static class ParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** Status to answer with, e.g. 431 */
+    final int status;
+
+    ParseException(int status) {
+      super(HttpResponse.reason(status));
+      this.status = status;
+    }
+  }
+
+  private static final byte[] CONTENT_LENGTH = bytes("content-length");
+  private static final byte[] TRANSFER_ENCODING = bytes("transfer-encoding");
+  private static final byte[] CHUNKED = bytes("chunked");
+  private static final byte[] CONNECTION = bytes("connection");
+  private static final byte[] CLOSE = bytes("close");
+  private static final byte[] KEEP_ALIVE = bytes("keep-alive");
+  private static final byte[] HTTP_11 = bytes("http/1.1");
+
+  // offsets of the last parsed request, ends are exclusive
+  int methodStart;
+  int methodEnd;
+
+  /** Start of the path after the leading "/", -1 if the request line is broken */
+  int pathStart;
+  int pathEnd;
+
+  /** Start of the query after the "?", -1 if there is none */
+  int queryStart;
+  int queryEnd;
+  int versionStart;
+  int versionEnd;
+
+  /** Name start, name end, value start and value end of every header field */
+  final int[] fields = new int[4 * MAX_HEADERS];
+  int fieldCount;
+
+  /** Index just after the empty line ending the header */
+  int headerEnd;
+
+  /** Content-Length of the body, -1 for a chunked body */
+  long contentLength;
+  boolean keepAlive;
+  boolean http11;
+
+  /** Read buffer of the blocking server, bytes from 0 to position are data */
+  private ByteBuffer buffer;
+
+  /** Bytes at the start of the buffer that belong to the last returned request */
+  private int consumed;
+
+  /**
+   * Finds the empty line ending a request header. Empty lines some clients send
+   * between requests are skipped.
+   * @param data the received bytes
+   * @param from where to start looking, bytes before were already searched
+   * @param limit end of the received bytes
+   * @return index just after the empty line or -1 if it did not arrive yet
+   */
+  public static int headerEnd(byte[] data, int from, int limit) {
+    int start = skipEmptyLines(data, limit);
+    for (int i = Math.max(from, start + 1); i < limit; i++) {
+      if (data[i] == '\n') {
+        if (data[i - 1] == '\n') {
+          return i + 1;
+        }
+        if (i >= start + 2 && data[i - 1] == '\r' && data[i - 2] == '\n') {
+          return i + 1;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static int skipEmptyLines(byte[] data, int limit) {
+    int start = 0;
+    while (start < limit && (data[start] == '\r' || data[start] == '\n')) {
+      start++;
+    }
+    return start;
+  }
+
+  /**
+   * Tokenizes a complete request header
+   * @param data the received bytes, starting with the request
+   * @param end index just after the empty line, see headerEnd
+   * @return 0 if the request can be answered, otherwise the status of the error
+   *     to answer with (400, 431 or 501)
+   */
+  public int parse(byte[] data, int end) {
+    headerEnd = end;
+    fieldCount = 0;
+    contentLength = 0;
+    pathStart = -1;
+    pathEnd = -1;
+    queryStart = -1;
+    queryEnd = -1;
+    boolean close = false;
+    boolean keepAliveRequested = false;
+    boolean lengthSent = false;
+    boolean chunked = false;
+
+    // request line format: "GET /<path>?<query> HTTP/1.1"
+    int start = skipEmptyLines(data, end);
+    int lineEnd = lineEnd(data, start, end);
+    methodStart = start;
+    methodEnd = indexOf(data, (byte) ' ', start, lineEnd);
+    if (methodEnd < 0) {
+      methodEnd = lineEnd;
+      versionStart = versionEnd = lineEnd;
+    } else {
+      int targetEnd = indexOf(data, (byte) ' ', methodEnd + 1, lineEnd);
+      if (targetEnd > methodEnd + 1 && data[methodEnd + 1] == '/') {
+        pathStart = methodEnd + 2;
+        pathEnd = indexOf(data, (byte) '?', pathStart, targetEnd);
+        if (pathEnd < 0) {
+          pathEnd = targetEnd;
+        } else {
+          queryStart = pathEnd + 1;
+          queryEnd = targetEnd;
+        }
+        versionStart = targetEnd + 1;
+      } else {
+        versionStart = lineEnd;
+      }
+      versionEnd = lineEnd;
+    }
+
+    // header fields up to the empty line
+    int line = next(data, lineEnd, end);
+    while (line < end) {
+      lineEnd = lineEnd(data, line, end);
+      if (lineEnd == line) {
+        break; // the empty line
+      }
+      int colon = indexOf(data, (byte) ':', line, lineEnd);
+      if (colon > line) {
+        if (fieldCount == MAX_HEADERS) {
+          return 431;
+        }
+        int nameStart = trimStart(data, line, colon);
+        int nameEnd = trimEnd(data, nameStart, colon);
+        int valueStart = trimStart(data, colon + 1, lineEnd);
+        int valueEnd = trimEnd(data, valueStart, lineEnd);
+        int field = 4 * fieldCount++;
+        fields[field] = nameStart;
+        fields[field + 1] = nameEnd;
+        fields[field + 2] = valueStart;
+        fields[field + 3] = valueEnd;
+
+        // the fields the server itself needs are looked at right here
+        if (equalsIgnoreCase(data, nameStart, nameEnd, CONTENT_LENGTH)) {
+          contentLength = parseLength(data, valueStart, valueEnd);
+          if (contentLength < 0) {
+            return 400;
+          }
+          lengthSent = true;
+        } else if (equalsIgnoreCase(data, nameStart, nameEnd, TRANSFER_ENCODING)) {
+          if (!equalsIgnoreCase(data, valueStart, valueEnd, CHUNKED)) {
+            return 501; // gzip and friends are not supported
+          }
+          chunked = true;
+        } else if (equalsIgnoreCase(data, nameStart, nameEnd, CONNECTION)) {
+          close |= containsIgnoreCase(data, valueStart, valueEnd, CLOSE);
+          keepAliveRequested |= containsIgnoreCase(data, valueStart, valueEnd, KEEP_ALIVE);
+        }
+      }
+      line = next(data, lineEnd, end);
+    }
+    if (chunked) {
+      if (lengthSent) {
+        // two different ideas of where the body ends, the way request smuggling works
+        return 400;
+      }
+      contentLength = -1;
+    }
+
+    // HTTP/1.1 connections stay open unless the client says "Connection: close",
+    // HTTP/1.0 clients have to ask for "Connection: keep-alive"
+    http11 = equalsIgnoreCase(data, versionStart, versionEnd, HTTP_11);
+    keepAlive = http11 ? !close : keepAliveRequested;
+    return 0;
+  }
+
+  /**
+   * Copies the header of the last parsed request out of the buffer, so the
+   * buffer can be reused while a route works on the request
+   * @param data the buffer the request was parsed from
+   * @return the request, its body is read separately
+   */
+  public HttpRequest request(byte[] data) {
+    byte[] raw = new byte[headerEnd];
+    System.arraycopy(data, 0, raw, 0, headerEnd);
+    int[] offsets = new int[4 * fieldCount];
+    System.arraycopy(fields, 0, offsets, 0, offsets.length);
+    return new HttpRequest(this, raw, offsets);
+  }
+
+  /**
+   * Reads the next request and its body from a blocking stream. Bytes of
+   * pipelined requests read along with it stay in the buffer for the next call.
+   * @param in the connection's input stream, it does not need to be buffered
+   * @return the request or null if the stream ended before the request was complete
+   * @throws ParseException if the request cannot be answered
+   * @throws IOException if reading fails
+   */
+  public HttpRequest read(InputStream in) throws IOException {
+    HttpRequest request = readHeader(in);
+    if (request != null && request.hasBody() && !readBody(in, request)) {
+      return null; // the client went away in the middle of the body
+    }
+    return request;
+  }
+
+  /**
+   * Reads the header of the next request from a blocking stream, the body (if
+   * any) is left for readBody
+   * @param in the connection's input stream, it does not need to be buffered
+   * @return the request or null if the stream ended before a request started
+   * @throws ParseException if the request cannot be answered
+   * @throws IOException if reading fails
+   */
+  public HttpRequest readHeader(InputStream in) throws IOException {
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+    if (consumed > 0) {
+      // drop the previous request, keep what follows it
+      buffer.flip();
+      buffer.position(consumed);
+      buffer.compact();
+      consumed = 0;
+    }
+
+    int scanned = 0;
+    int end;
+    while ((end = headerEnd(buffer.array(), scanned, buffer.position())) < 0) {
+      scanned = buffer.position();
+      if (!fill(in)) {
+        return null;
+      }
+    }
+
+    int status = parse(buffer.array(), end);
+    if (status != 0) {
+      throw new ParseException(status);
+    }
+    consumed = end;
+    return request(buffer.array());
+  }
+
+  /**
+   * Reads the body of the request readHeader returned into request.body
+   * @return false if the stream ended in the middle of the body
+   * @throws ParseException if the body is larger than MAX_REQUEST_SIZE
+   */
+  public boolean readBody(InputStream in, HttpRequest request) throws IOException {
+    if (request.bodyLength > MAX_REQUEST_SIZE) {
+      throw new ParseException(413);
+    }
+    BodyDecoder.Buffer body = new BodyDecoder.Buffer(request.bodyLength);
+    if (!readBody(in, request, body)) {
+      return false;
+    }
+    request.body = body.bytes();
+    return true;
+  }
+
+  /**
+   * Reads the body of the request readHeader returned. The body goes through
+   * the read buffer piece by piece, so a body of any size is read in the memory
+   * of the buffer.
+   * @param in the connection's input stream
+   * @param request the request the body belongs to
+   * @param sink gets the body as it arrives
+   * @return false if the stream ended in the middle of the body
+   * @throws ParseException if the chunk framing is broken
+   * @throws IOException if reading fails or the sink fails
+   */
+  public boolean readBody(InputStream in, HttpRequest request, BodyDecoder.Sink sink) throws IOException {
+    BodyDecoder decoder = new BodyDecoder(request.bodyLength);
+    while (true) {
+      consumed += decoder.feed(buffer.array(), consumed, buffer.position(), sink);
+      if (decoder.done()) {
+        request.received = decoder.received();
+        return true;
+      }
+      // everything buffered was body, the next piece can start at the front
+      buffer.clear();
+      consumed = 0;
+      int count = in.read(buffer.array(), 0, buffer.capacity());
+      if (count < 0) {
+        return false;
+      }
+      buffer.position(count);
+    }
+  }
+
+  /**
+   * Reads more bytes of a header into the buffer, growing it if it is full
+   * @return false at the end of the stream
+   */
+  private boolean fill(InputStream in) throws IOException {
+    if (!buffer.hasRemaining()) {
+      if (buffer.capacity() >= MAX_REQUEST_SIZE) {
+        throw new ParseException(431);
+      }
+      ByteBuffer bigger = ByteBuffer.allocate(Math.min(2 * buffer.capacity(), MAX_REQUEST_SIZE));
+      buffer.flip();
+      bigger.put(buffer);
+      buffer = bigger;
+    }
+    int count = in.read(buffer.array(), buffer.position(), buffer.remaining());
+    if (count < 0) {
+      return false;
+    }
+    buffer.position(buffer.position() + count);
+    return true;
+  }
+
+  /**
+   * Compares bytes with a lower case ASCII name, ignoring the case of the bytes
+   */
+  static boolean equalsIgnoreCase(byte[] data, int start, int end, byte[] lower) {
+    if (end - start != lower.length) {
+      return false;
+    }
+    for (int i = 0; i < lower.length; i++) {
+      if (toLower(data[start + i]) != lower[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compares bytes with a lower case ASCII name, ignoring the case of the bytes
+   */
+  static boolean equalsIgnoreCase(byte[] data, int start, int end, String lower) {
+    if (end - start != lower.length()) {
+      return false;
+    }
+    for (int i = 0; i < lower.length(); i++) {
+      if (toLower(data[start + i]) != lower.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean containsIgnoreCase(byte[] data, int start, int end, byte[] lower) {
+    for (int i = start; i + lower.length <= end; i++) {
+      if (equalsIgnoreCase(data, i, i + lower.length, lower)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int toLower(byte b) {
+    return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+  }
+
+  /**
+   * @return the Content-Length value or -1 if it is not a number
+   */
+  private static long parseLength(byte[] data, int start, int end) {
+    if (start == end || end - start > 18) {
+      return -1;
+    }
+    long length = 0;
+    for (int i = start; i < end; i++) {
+      if (data[i] < '0' || data[i] > '9') {
+        return -1;
+      }
+      length = 10 * length + (data[i] - '0');
+    }
+    return length;
+  }
+
+  private static int indexOf(byte[] data, byte b, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (data[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return index of the line ending ("\n" or "\r\n") of the line starting at start
+   */
+  private static int lineEnd(byte[] data, int start, int end) {
+    int newline = indexOf(data, (byte) '\n', start, end);
+    if (newline < 0) {
+      newline = end;
+    }
+    return newline > start && data[newline - 1] == '\r' ? newline - 1 : newline;
+  }
+
+  /**
+   * @return start of the line after the one ending at lineEnd
+   */
+  private static int next(byte[] data, int lineEnd, int end) {
+    int i = lineEnd;
+    if (i < end && data[i] == '\r') {
+      i++;
+    }
+    return i < end ? i + 1 : end;
+  }
+
+  private static int trimStart(byte[] data, int start, int end) {
+    while (start < end && (data[start] == ' ' || data[start] == '\t')) {
+      start++;
+    }
+    return start;
+  }
+
+  private static int trimEnd(byte[] data, int start, int end) {
+    while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+      end--;
+    }
+    return end;
+  }
+
+  private static byte[] bytes(String ascii) {
+    return ascii.getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,109 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * The header of a response, and its body if it is in memory, on the way to the
+ * socket.
+ *
+ * The header is encoded straight into a pooled direct buffer (see
+ * HttpResponse.writeHead) and the body is copied into a second pooled direct
+ * buffer, one slice at a time. Both go to the socket with one gathering write,
+ * so a small response is a single system call, and the kernel reads the bytes
+ * from the direct buffers without the copy a heap buffer would need. A body of
+ * any size is sent through the same slice buffer, so a response costs the same
+ * two pooled buffers whether its body has ten bytes or ten megabytes.
+ *
+ * Bodies that are files, streams or chunked are not part of this, they follow
+ * the header on their own.
+ */
+class ResponseBuffers {
+  /** Buffers the headers are encoded into, a header that does not fit gets one of its own */
+  static final BufferPool HEADERS = new BufferPool(4 * 1024, 256, true);
+
+  /** Buffers bodies are copied through, also used for streamed bodies */
+  static final BufferPool BODIES = new BufferPool(16 * 1024, 256, true);
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  /** The header and the current slice of the body, written together */
+  private final ByteBuffer[] buffers = new ByteBuffer[2];
+
+  /** The body in memory, null if it is not sent with the header */
+  private final byte[] body;
+
+  /** Position of the first body byte not copied into the slice yet */
+  private int copied;
+  private boolean released;
+
+  /**
+   * @param response the response, its body is included if it is in memory
+   *     and this is not a HEAD request
+   * @param keepAlive whether the connection stays open after this response
+   */
+  ResponseBuffers(HttpResponse response, boolean keepAlive) {
+    buffers[0] = encodeHead(response, keepAlive);
+    body = response.headOnly || response.body == null || response.body.length == 0 ? null : response.body;
+    buffers[1] = body == null ? EMPTY : BODIES.acquire();
+    if (body != null) {
+      fill();
+    }
+  }
+
+  private static ByteBuffer encodeHead(HttpResponse response, boolean keepAlive) {
+    ByteBuffer buffer = HEADERS.acquire();
+    try {
+      response.writeHead(buffer, keepAlive);
+      buffer.flip();
+      return buffer;
+    } catch (BufferOverflowException e) {
+      HEADERS.release(buffer);
+      return ByteBuffer.wrap(response.head(keepAlive));
+    }
+  }
+
+  /**
+   * Copies the next part of the body into the slice once the slice is written
+   */
+  private void fill() {
+    ByteBuffer slice = buffers[1];
+    slice.clear();
+    int count = Math.min(slice.remaining(), body.length - copied);
+    slice.put(body, copied, count);
+    copied += count;
+    slice.flip();
+  }
+
+  /**
+   * Writes as much as the channel takes, a blocking channel takes everything
+   * @return true once the header and the body are written
+   */
+  boolean writeTo(GatheringByteChannel channel) throws IOException {
+    while (true) {
+      channel.write(buffers);
+      if (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+        return false;
+      }
+      if (body == null || copied == body.length) {
+        return true;
+      }
+      fill();
+    }
+  }
+
+  /**
+   * Gives the buffers back to their pools, they must not be used afterwards
+   */
+  void release() {
+    if (!released) {
+      released = true;
+      HEADERS.release(buffers[0]);
+      if (body != null) {
+        BODIES.release(buffers[1]);
+      }
+    }
+  }
+}
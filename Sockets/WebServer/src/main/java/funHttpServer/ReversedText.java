@@ -0,0 +1,174 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reverses a POST body for /reverse without holding it in memory.
+ *
+ * The first character of the answer is the last one of the body, so nothing can
+ * be sent before the whole body is in. Small bodies are kept in memory, larger
+ * ones are written to a temporary file while they arrive. The response then reads
+ * the text backwards, one block at a time, and reverses each block while copying
+ * it into the socket's buffer. Memory use is the same for a kilobyte and for
+ * a gigabyte.
+ *
+ * The text is UTF-8, so a block is reversed character by character, not byte by
+ * byte: the bytes of a multi-byte character keep their order. A block that would
+ * start in the middle of a character is cut so the character goes with the
+ * next block instead.
+ */
+public class ReversedText implements Router.BodyConsumer, ReadableByteChannel {
+  /** Bodies up to this size are kept in memory */
+  static final int MEMORY_LIMIT = 64 * 1024;
+
+  /** Bytes read from the end of the text at a time */
+  static final int BLOCK_SIZE = 8 * 1024;
+
+  private static final byte[] PREFIX = "Reversed text: ".getBytes(StandardCharsets.UTF_8);
+
+  private byte[] memory = new byte[1024];
+  private FileChannel file;
+  private long length;
+
+  /** Bytes of the text not sent yet, they are the first "remaining" bytes of the body */
+  private long remaining;
+  private int prefixSent;
+  private final byte[] block = new byte[BLOCK_SIZE];
+  private boolean open = true;
+
+  @Override
+  public void accept(byte[] data, int offset, int count) throws IOException {
+    if (file == null && length + count > MEMORY_LIMIT) {
+      // too large for memory, move what we have to a file
+      Path path = Files.createTempFile("reverse", ".txt");
+      file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+          StandardOpenOption.DELETE_ON_CLOSE);
+      write(memory, 0, (int) length);
+      memory = null;
+    }
+    if (file != null) {
+      write(data, offset, count);
+    } else {
+      if (length + count > memory.length) {
+        byte[] bigger = new byte[(int) Math.min(MEMORY_LIMIT, Math.max(length + count, 2L * memory.length))];
+        System.arraycopy(memory, 0, bigger, 0, (int) length);
+        memory = bigger;
+      }
+      System.arraycopy(data, offset, memory, (int) length, count);
+    }
+    length += count;
+  }
+
+  private void write(byte[] data, int offset, int count) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data, offset, count);
+    while (buffer.hasRemaining()) {
+      file.write(buffer);
+    }
+  }
+
+  @Override
+  public HttpResponse finish() {
+    if (length == 0) {
+      close();
+      return new HttpResponse(400, HttpResponse.TEXT_HTML, "Error: Missing or empty text.");
+    }
+    remaining = length;
+    return new HttpResponse(200, HttpResponse.TEXT_HTML, this, PREFIX.length + length);
+  }
+
+  @Override
+  public void abort() {
+    close();
+  }
+
+  /**
+   * The answer: the prefix, then the text from back to front
+   */
+  @Override
+  public int read(ByteBuffer target) throws IOException {
+    int start = target.position();
+    if (prefixSent < PREFIX.length) {
+      int count = Math.min(target.remaining(), PREFIX.length - prefixSent);
+      target.put(PREFIX, prefixSent, count);
+      prefixSent += count;
+    }
+    if (prefixSent == PREFIX.length && remaining > 0 && target.hasRemaining()) {
+      reverseBlock(target);
+    }
+    int count = target.position() - start;
+    return count == 0 && remaining == 0 ? -1 : count;
+  }
+
+  /**
+   * Moves the last block of the unsent text into the target, reversed
+   */
+  private void reverseBlock(ByteBuffer target) throws IOException {
+    int count = (int) Math.min(Math.min(BLOCK_SIZE, target.remaining()), remaining);
+    long position = remaining - count;
+    if (file != null) {
+      ByteBuffer buffer = ByteBuffer.wrap(block, 0, count);
+      while (buffer.hasRemaining()) {
+        if (file.read(buffer, position + buffer.position()) < 0) {
+          throw new IOException("Temporary file got shorter");
+        }
+      }
+    } else {
+      System.arraycopy(memory, (int) position, block, 0, count);
+    }
+
+    // a character cut at the front of the block goes with the next block,
+    // unless the block holds nothing else (broken UTF-8 or a tiny target)
+    int start = 0;
+    while (start < count && position + start > 0 && isContinuation(block[start])) {
+      start++;
+    }
+    if (start == count) {
+      start = 0;
+    }
+
+    // characters from the back of the block to the front, each in its own order
+    int end = count;
+    while (end > start) {
+      int characterStart = end - 1;
+      while (characterStart > start && isContinuation(block[characterStart])) {
+        characterStart--;
+      }
+      target.put(block, characterStart, end - characterStart);
+      end = characterStart;
+    }
+    remaining -= count - start;
+  }
+
+  private static boolean isContinuation(byte b) {
+    return (b & 0xC0) == 0x80;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Deletes the temporary file
+   */
+  @Override
+  public void close() {
+    open = false;
+    memory = null;
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      file = null;
+    }
+  }
+}
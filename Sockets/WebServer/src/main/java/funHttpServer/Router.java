@@ -0,0 +1,182 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps request paths to their handlers. The table is built once when the server
+ * starts, after that finding a handler is a hash lookup for the exact routes
+ * (like "multiply") and a walk over the path segments for the prefix routes
+ * (like "file", which serves "file/www/index.html"). Adding more routes does not
+ * make finding one slower, and a path only matches the route it starts with,
+ * not every route whose name appears somewhere inside it.
+ */
+public class Router {
+
+  /**
+   * Code that answers the requests for one route
+   */
+  public interface Handler {
+    /**
+     * @param request the parsed request, the part of the path after a prefix
+     *     route is in request.pathInfo
+     * @return the response to send back
+     */
+    HttpResponse handle(HttpRequest request) throws IOException;
+  }
+
+  /**
+   * Code that answers requests whose body is too large to hold in memory. It
+   * gets the body piece by piece while it arrives, see BodyDecoder.
+   */
+  public interface BodyHandler {
+    /**
+     * Called once the header of a request with a body was read
+     * @param request the request, its body has not been read yet
+     * @return the consumer that gets the body
+     */
+    BodyConsumer start(HttpRequest request) throws IOException;
+  }
+
+  /**
+   * Gets the body of one request and builds the response once it is complete
+   */
+  public interface BodyConsumer extends BodyDecoder.Sink {
+    /**
+     * Called after the last piece of the body
+     * @return the response to send back
+     */
+    HttpResponse finish() throws IOException;
+
+    /** Called instead of finish when the body never completes, frees what the consumer holds */
+    default void abort() {
+    }
+  }
+
+  /**
+   * A handler with the name it is reported under, e.g. "/json"
+   */
+  private static class Route {
+    final String name;
+    final Handler handler;
+
+    /** Takes streamed request bodies, null if the handler gets the whole body */
+    final BodyHandler bodyHandler;
+
+    Route(String name, Handler handler, BodyHandler bodyHandler) {
+      this.name = name;
+      this.handler = handler;
+      this.bodyHandler = bodyHandler;
+    }
+  }
+
+  /**
+   * One path segment of the prefix trie
+   */
+  private static class Node {
+    final Map<String, Node> children = new HashMap<>();
+    Route route;
+  }
+
+  private final Map<String, Route> exact = new HashMap<>();
+  private final Node prefixes = new Node();
+
+  /**
+   * Registers a handler for exactly this path
+   * @param path path without the leading "/" and without query, e.g. "multiply"
+   * @return this router so calls can be chained
+   */
+  public Router add(String path, Handler handler) {
+    return add(path, handler, null);
+  }
+
+  /**
+   * Registers a handler for exactly this path that streams request bodies
+   * @param path path without the leading "/" and without query, e.g. "wordcount"
+   * @param handler answers the requests without a streamed body
+   * @param bodyHandler gets the bodies of the requests the server streams
+   * @return this router so calls can be chained
+   */
+  public Router add(String path, Handler handler, BodyHandler bodyHandler) {
+    exact.put(path.toLowerCase(Locale.ROOT), new Route("/" + path, handler, bodyHandler));
+    return this;
+  }
+
+  /**
+   * Registers a handler for every path starting with the given segments
+   * @param prefix path segments without leading or trailing "/", e.g. "file"
+   * @return this router so calls can be chained
+   */
+  public Router addPrefix(String prefix, Handler handler) {
+    Node node = prefixes;
+    for (String segment : prefix.split("/")) {
+      node = node.children.computeIfAbsent(segment, s -> new Node());
+    }
+    node.route = new Route("/" + prefix, handler, null);
+    return this;
+  }
+
+  /**
+   * Finds the handler for the request. Exact routes win over prefix routes and a
+   * longer prefix wins over a shorter one.
+   * @param request the request, its route is set when a route matches and its
+   *     pathInfo when a prefix route matches
+   * @return the handler or null if no route matches
+   */
+  public Handler route(HttpRequest request) {
+    String path = request.path;
+    Route route = exact(path);
+    if (route != null) {
+      request.route = route.name;
+      request.pathInfo = "";
+      return route.handler;
+    }
+
+    Handler handler = null;
+    Node node = prefixes;
+    int start = 0;
+    while (start <= path.length()) {
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = path.length();
+      }
+      node = node.children.get(path.substring(start, end));
+      if (node == null) {
+        break;
+      }
+      if (node.route != null) {
+        handler = node.route.handler;
+        request.route = node.route.name;
+        request.pathInfo = end < path.length() ? path.substring(end + 1) : "";
+      }
+      start = end + 1;
+    }
+    return handler;
+  }
+
+  /**
+   * Finds the body handler for a request whose body should be streamed
+   * @param request the request, its route is set when a body handler matches
+   * @return the body handler or null if the route takes whole bodies only
+   */
+  public BodyHandler routeBody(HttpRequest request) {
+    Route route = exact(request.path);
+    if (route == null || route.bodyHandler == null) {
+      return null;
+    }
+    request.route = route.name;
+    request.pathInfo = "";
+    return route.bodyHandler;
+  }
+
+  private Route exact(String path) {
+    Route route = exact.get(path);
+    if (route == null) {
+      // the original routes ignored case, so "/JSON" still works
+      route = exact.get(path.toLowerCase(Locale.ROOT));
+    }
+    return route;
+  }
+}
@@ -0,0 +1,296 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Startup options for the fun web server. Options are given on the command line
+ * as --name=value pairs, e.g.
+ *
+ *   java funHttpServer.WebServer --port=9000 --engine=nio --workers=8
+ *
+ * Anything not given keeps the default below, so running without arguments
+ * behaves exactly like the original single threaded server on port 9000.
+ */
+public class ServerConfig {
+  /** Port the server listens on */
+  int port = 9000;
+
+  /** "blocking" uses the original accept loop, "nio" the selector based event loops */
+  String engine = "blocking";
+
+  /** Number of event loops for the nio engine, one per core by default */
+  int workers = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Whether every event loop (nio) or one accept loop per worker (blocking)
+   * listens on a socket of its own, bound with SO_REUSEPORT
+   */
+  boolean reusePort = false;
+
+  /** Seconds an idle connection is kept open for the next request, 0 closes after every response */
+  int keepAlive = 5;
+
+  /**
+   * Where requests run: "serial" on the accepting (or event loop) thread,
+   * "virtual" on a new virtual thread per connection, "pool" on a fixed pool of
+   * platform threads
+   */
+  String executor = "serial";
+
+  /** Number of threads for the "pool" executor */
+  int poolSize = 4 * Runtime.getRuntime().availableProcessors();
+
+  /** Bytes of www/ content kept in memory, 0 reads from disk on every request */
+  long cacheSize = 16 * 1024 * 1024;
+
+  /** Whether text responses are compressed for clients sending Accept-Encoding */
+  boolean compression = true;
+
+  /** Seconds a /github result is served from the cache, 0 fetches every time */
+  int githubTtl = 60;
+
+  /** Number of /github queries kept in the cache */
+  int githubCacheSize = 256;
+
+  /** Base URL of the GitHub API, point it to a local server for testing */
+  String githubUrl = "https://api.github.com/";
+
+  /** File the access log is written to, "none" turns it off */
+  String accessLog = "access.log";
+
+  /** Share of the successful requests that is logged, errors are always logged */
+  double accessLogSample = 1.0;
+
+  /** Size at which the access log is rotated */
+  long accessLogSize = 10 * 1024 * 1024;
+
+  /** Number of rotated access logs kept */
+  int accessLogFiles = 5;
+
+  /** Most requests handled at the same time, more get 503, 0 for no limit */
+  int maxConcurrent = 0;
+
+  /** Requests that may wait for a slot when maxConcurrent are busy */
+  int maxQueued = 64;
+
+  /** Milliseconds a request waits for a slot before it gets 503 */
+  int queueTimeout = 1000;
+
+  /** "fixed" keeps maxConcurrent, "aimd" and "gradient" adapt it to the latency */
+  String limiter = "fixed";
+
+  /** Milliseconds the aimd limiter aims for, slower responses lower the limit */
+  int targetLatency = 100;
+
+  /** Most open connections, more are answered with 503 and closed, 0 for no limit */
+  int maxConnections = 0;
+
+  /** Seconds a client has to send a complete request header */
+  int headerTimeout = 10;
+
+  /** Seconds a client may take no bytes of its response before it is disconnected */
+  int writeTimeout = 30;
+
+  /** Seconds a client has to start its request body, bytes sent buy more up to this much */
+  int bodyTimeout = 30;
+
+  /** Seconds a shutdown waits for the requests in progress */
+  int drainTimeout = 10;
+
+  /** Seconds a client is told to wait with Retry-After when the server is busy */
+  int retryAfter = 1;
+
+  /** Seconds between the images pushed to the pages subscribed at /images */
+  int imageInterval = 10;
+
+  /**
+   * Reads the --name=value pairs into a config, exits with a usage message
+   * when an option is unknown or malformed
+   * @param args command line arguments
+   * @return the parsed config
+   */
+  public static ServerConfig parse(String[] args) {
+    ServerConfig config = new ServerConfig();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) {
+        usage("Malformed option: " + arg);
+      }
+      String name = arg.substring(2, eq);
+      String value = arg.substring(eq + 1);
+      try {
+        switch (name) {
+          case "port":
+            config.port = Integer.parseInt(value);
+            break;
+          case "engine":
+            if (!value.equals("blocking") && !value.equals("nio")) {
+              usage("Unknown engine: " + value);
+            }
+            config.engine = value;
+            break;
+          case "workers":
+            config.workers = Integer.parseInt(value);
+            break;
+          case "reusePort":
+            if (!value.equals("true") && !value.equals("false")) {
+              usage("[reusePort] must be true or false");
+            }
+            config.reusePort = Boolean.parseBoolean(value);
+            break;
+          case "keepAlive":
+            config.keepAlive = Integer.parseInt(value);
+            break;
+          case "executor":
+            if (!value.equals("serial") && !value.equals("virtual") && !value.equals("pool")) {
+              usage("Unknown executor: " + value);
+            }
+            config.executor = value;
+            break;
+          case "poolSize":
+            config.poolSize = Integer.parseInt(value);
+            break;
+          case "cacheSize":
+            config.cacheSize = Long.parseLong(value);
+            break;
+          case "compression":
+            if (!value.equals("true") && !value.equals("false")) {
+              usage("[compression] must be true or false");
+            }
+            config.compression = Boolean.parseBoolean(value);
+            break;
+          case "githubTtl":
+            config.githubTtl = Integer.parseInt(value);
+            break;
+          case "githubCacheSize":
+            config.githubCacheSize = Integer.parseInt(value);
+            break;
+          case "githubUrl":
+            config.githubUrl = value.endsWith("/") ? value : value + "/";
+            break;
+          case "accessLog":
+            config.accessLog = value;
+            break;
+          case "accessLogSample":
+            config.accessLogSample = Double.parseDouble(value);
+            if (config.accessLogSample < 0 || config.accessLogSample > 1) {
+              usage("[accessLogSample] must be between 0 and 1");
+            }
+            break;
+          case "accessLogSize":
+            config.accessLogSize = Long.parseLong(value);
+            break;
+          case "accessLogFiles":
+            config.accessLogFiles = Integer.parseInt(value);
+            break;
+          case "maxConcurrent":
+            config.maxConcurrent = Integer.parseInt(value);
+            break;
+          case "maxQueued":
+            config.maxQueued = Integer.parseInt(value);
+            break;
+          case "queueTimeout":
+            config.queueTimeout = Integer.parseInt(value);
+            break;
+          case "limiter":
+            if (!value.equals("fixed") && !value.equals("aimd") && !value.equals("gradient")) {
+              usage("Unknown limiter: " + value);
+            }
+            config.limiter = value;
+            break;
+          case "targetLatency":
+            config.targetLatency = Integer.parseInt(value);
+            break;
+          case "maxConnections":
+            config.maxConnections = Integer.parseInt(value);
+            break;
+          case "headerTimeout":
+            config.headerTimeout = Integer.parseInt(value);
+            break;
+          case "writeTimeout":
+            config.writeTimeout = Integer.parseInt(value);
+            break;
+          case "bodyTimeout":
+            config.bodyTimeout = Integer.parseInt(value);
+            break;
+          case "drainTimeout":
+            config.drainTimeout = Integer.parseInt(value);
+            break;
+          case "retryAfter":
+            config.retryAfter = Integer.parseInt(value);
+            break;
+          case "imageInterval":
+            config.imageInterval = Integer.parseInt(value);
+            break;
+          default:
+            usage("Unknown option: " + name);
+        }
+      } catch (NumberFormatException e) {
+        usage("[" + name + "] must be a number");
+      }
+    }
+    return config;
+  }
+
+  /**
+   * Creates the executor selected with --executor
+   * @return the executor or null for "serial", meaning requests are handled
+   *     on the thread that read them
+   */
+  public ExecutorService createExecutor() {
+    if (executor.equals("virtual")) {
+      // looked up at runtime so the server still compiles and runs before Java 21
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) factory.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        System.out.println("Virtual threads need Java 21, using a pool of " + poolSize + " threads instead");
+      }
+    } else if (!executor.equals("pool")) {
+      return null;
+    }
+    return Executors.newFixedThreadPool(Math.max(1, poolSize));
+  }
+
+  /**
+   * Creates the access log selected with --accessLog
+   * @return the log or null if it is turned off or the file cannot be opened
+   */
+  public AccessLog createAccessLog() {
+    if (accessLog.equals("none")) {
+      return null;
+    }
+    try {
+      return new AccessLog(new File(accessLog), accessLogSize, accessLogFiles, accessLogSample);
+    } catch (IOException e) {
+      System.out.println("Cannot open " + accessLog + ", access log disabled: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Creates the admission control configured with --maxConcurrent and friends
+   */
+  public AdmissionControl createAdmissionControl() {
+    return new AdmissionControl(limiter, maxConcurrent, maxQueued, queueTimeout, targetLatency, maxConnections);
+  }
+
+  private static void usage(String message) {
+    System.out.println(message);
+    System.out.println("Expected arguments: [--port=<int>] [--engine=blocking|nio] [--workers=<int>]"
+        + " [--reusePort=true|false] [--keepAlive=<seconds>] [--executor=serial|virtual|pool] [--poolSize=<int>]"
+        + " [--cacheSize=<bytes>] [--compression=true|false]"
+        + " [--githubTtl=<seconds>] [--githubCacheSize=<int>] [--githubUrl=<url>]"
+        + " [--accessLog=<file>|none] [--accessLogSample=<0..1>] [--accessLogSize=<bytes>]"
+        + " [--accessLogFiles=<int>] [--maxConcurrent=<int>] [--maxQueued=<int>]"
+        + " [--queueTimeout=<millis>] [--limiter=fixed|aimd|gradient] [--targetLatency=<millis>]"
+        + " [--maxConnections=<int>] [--headerTimeout=<seconds>] [--writeTimeout=<seconds>]"
+        + " [--bodyTimeout=<seconds>] [--drainTimeout=<seconds>]"
+        + " [--retryAfter=<seconds>] [--imageInterval=<seconds>]");
+    System.exit(1);
+  }
+}
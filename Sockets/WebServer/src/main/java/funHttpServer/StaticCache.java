@@ -0,0 +1,258 @@
+package funHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.json.JSONObject;
+
+/**
+ * Keeps the bytes of the files in a directory (our www/) in memory so the hot
+ * pages do not cost a disk read on every request.
+ *
+ * Besides plain files the cache holds derived entries, like the root page with
+ * the directory listing filled in. A derived entry depends on the whole directory
+ * and is dropped whenever anything in it changes.
+ *
+ * Pages get their ETag and Last-Modified when their bytes are loaded and keep
+ * them in the same entry, so the validators always belong to the bytes served.
+ *
+ * A WatchService thread tells us when a file is created, changed or deleted, so
+ * entries stay valid until then. The cache is bounded by the total number of bytes
+ * it holds and evicts the least recently used entries first.
+ */
+public class StaticCache {
+
+  /**
+   * Produces the bytes of a derived entry
+   */
+  public interface Loader {
+    byte[] load() throws IOException;
+  }
+
+  /**
+   * A cached file or derived value
+   */
+  public static class Entry {
+    public final byte[] bytes;
+
+    /** Validators of a page, null and 0 for other entries */
+    public final String etag;
+    public final long lastModified;
+
+    Entry(byte[] bytes, String etag, long lastModified) {
+      this.bytes = bytes;
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private final File dir;
+  private final long maxBytes;
+
+  /** Files by name, derived entries by a key starting with "#", in LRU order */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  /**
+   * Bumped on every change in the directory, a load that started before a change
+   * must not put its (maybe outdated) result into the cache
+   */
+  private long generation;
+
+  /** Entries are only kept while the watcher runs, otherwise we would miss changes */
+  private boolean watching;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param dir the directory to serve files from
+   * @param maxBytes upper bound for the bytes held, 0 disables caching
+   */
+  public StaticCache(File dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Contents of a file in the directory
+   * @param name file name inside the directory, e.g. "index.html"
+   * @return the bytes of the file
+   * @throws IOException if the file cannot be read
+   */
+  public byte[] file(String name) throws IOException {
+    return page(name).bytes;
+  }
+
+  /**
+   * A file in the directory with its validators
+   * @param name file name inside the directory, e.g. "index.html"
+   * @return the bytes, ETag and modification time of the file
+   * @throws IOException if the file cannot be read
+   */
+  public Entry page(String name) throws IOException {
+    File file = new File(dir, name);
+    return get(name, () -> WebServer.readFileInBytes(file), file::lastModified);
+  }
+
+  /**
+   * A page computed from the directory contents with its validators
+   * @param key name of the entry
+   * @param source the file the page is built from
+   * @param loader computes the bytes on a miss
+   * @return the cached or freshly computed page
+   */
+  public Entry page(String key, File source, Loader loader) throws IOException {
+    // the directory changes when files are added or removed (root page listing)
+    return get("#" + key, loader, () -> Math.max(source.lastModified(), dir.lastModified()));
+  }
+
+  /**
+   * A value computed from the directory contents, like a compressed page
+   * @param key name of the entry
+   * @param loader computes the bytes on a miss
+   * @return the cached or freshly computed bytes
+   */
+  public byte[] derived(String key, Loader loader) throws IOException {
+    return get("#" + key, loader, null).bytes;
+  }
+
+  /**
+   * @param modified modification time of what the bytes are loaded from, null
+   *     for entries without validators
+   */
+  private Entry get(String key, Loader loader, LongSupplier modified) throws IOException {
+    long loadGeneration;
+    synchronized (this) {
+      Entry cached = entries.get(key);
+      if (cached != null) {
+        hits.increment();
+        return cached;
+      }
+      loadGeneration = generation;
+    }
+    misses.increment();
+
+    // read outside the lock so one slow disk read does not hold up every hit.
+    // The time is taken first: a change during the load leaves it older than
+    // the bytes, and then the generation check keeps the entry out anyway
+    long lastModified = modified != null ? modified.getAsLong() : 0;
+    byte[] bytes = loader.load();
+    Entry loaded = new Entry(bytes, modified != null ? Validators.etag(bytes) : null, lastModified);
+    if (bytes.length <= maxBytes / 4) {
+      synchronized (this) {
+        if (watching && loadGeneration == generation) {
+          put(key, loaded);
+        }
+      }
+    }
+    return loaded;
+  }
+
+  private void put(String key, Entry value) {
+    Entry old = entries.put(key, value);
+    if (old != null) {
+      bytes -= old.bytes.length;
+    }
+    bytes += value.bytes.length;
+
+    // evict least recently used entries until we are within bounds again
+    Iterator<Map.Entry<String, Entry>> oldest = entries.entrySet().iterator();
+    while (bytes > maxBytes && oldest.hasNext()) {
+      bytes -= oldest.next().getValue().bytes.length;
+      oldest.remove();
+    }
+  }
+
+  /**
+   * Drops a changed file and every derived entry
+   * @param name the changed file, null to drop everything
+   */
+  synchronized void invalidate(String name) {
+    generation++;
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Entry> entry = it.next();
+      if (name == null || entry.getKey().equals(name) || entry.getKey().startsWith("#")) {
+        bytes -= entry.getValue().bytes.length;
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Starts a daemon thread that invalidates entries when the directory changes
+   */
+  public void watch() {
+    WatchService watcher;
+    try {
+      watcher = FileSystems.getDefault().newWatchService();
+      dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException e) {
+      // without notifications we cannot tell when an entry is outdated
+      System.out.println("Cannot watch " + dir + ", caching disabled: " + e.getMessage());
+      return;
+    }
+    synchronized (this) {
+      watching = true;
+    }
+
+    Thread thread = new Thread(() -> {
+      try {
+        while (true) {
+          WatchKey key = watcher.take();
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              invalidate(null); // we missed events, start over
+            } else {
+              invalidate(((Path) event.context()).toString());
+            }
+          }
+          if (!key.reset()) {
+            // the directory is gone, stop caching
+            synchronized (this) {
+              watching = false;
+            }
+            invalidate(null);
+            return;
+          }
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        // shutting down
+      }
+    }, "www-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Size and hit ratio of the cache
+   * @return JSON with entries, bytes, maxBytes, hits, misses and hitRatio
+   */
+  public synchronized JSONObject stats() {
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    long total = hitCount + missCount;
+
+    JSONObject stats = new JSONObject();
+    stats.put("entries", entries.size());
+    stats.put("bytes", bytes);
+    stats.put("maxBytes", maxBytes);
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put("hitRatio", total == 0 ? 0.0 : (double) hitCount / total);
+    return stats;
+  }
+}
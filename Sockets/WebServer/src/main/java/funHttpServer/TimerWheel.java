@@ -0,0 +1,140 @@
+package funHttpServer;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks after a delay, for thousands of deadlines that are mostly
+ * cancelled before they are due (a hashed timer wheel).
+ *
+ * Time is cut into ticks of tickMillis. The wheel has one slot per tick, and
+ * a timeout goes into the slot of the tick it is due in, together with the
+ * number of turns of the wheel still to wait. One thread moves to the next slot
+ * every tick and runs the timeouts there whose turns are up. Adding and
+ * cancelling a timeout is O(1) no matter how many are pending, there is no
+ * sorted queue and no thread per timeout. The price is precision: a task runs
+ * up to one tick after it is due.
+ *
+ * New timeouts are handed to the wheel thread through a queue, so schedule is
+ * safe from any thread. A cancelled timeout stays in its slot until the wheel
+ * gets there and drops it.
+ */
+public class TimerWheel {
+  /**
+   * A scheduled task
+   */
+  public static class Timeout {
+    private final Runnable task;
+
+    /** System.nanoTime() the task is due at */
+    final long deadline;
+
+    /** Turns of the wheel to wait once in the slot, only used by the wheel thread */
+    private long rounds;
+    private volatile boolean cancelled;
+
+    Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Makes sure the task does not run, unless it is running already
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+  }
+
+  private final long tickNanos;
+  private final Queue<Timeout>[] slots;
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+  private final long start = System.nanoTime();
+
+  /** Ticks passed since start, only used by the wheel thread */
+  private long tick;
+
+  /**
+   * @param name of the wheel's thread
+   * @param tickMillis precision of the timeouts
+   * @param size slots of the wheel, delays up to size ticks need no extra turn
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public TimerWheel(String name, long tickMillis, int size) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.slots = new Queue[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new ArrayDeque<>();
+    }
+    Thread thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Runs a task on the wheel thread after a delay. The task has to be short,
+   * it holds up every other timeout while it runs.
+   * @param delayNanos time until the task is due
+   * @return the timeout, to cancel it
+   */
+  public Timeout schedule(long delayNanos, Runnable task) {
+    Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delayNanos));
+    added.add(timeout);
+    return timeout;
+  }
+
+  private void run() {
+    while (true) {
+      long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+      if (sleep > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      tick++;
+      addNew();
+      expire(slots[(int) (tick % slots.length)]);
+    }
+  }
+
+  /**
+   * Puts the timeouts scheduled since the last tick into their slots
+   */
+  private void addNew() {
+    Timeout timeout;
+    while ((timeout = added.poll()) != null) {
+      if (timeout.cancelled) {
+        continue;
+      }
+      // the tick the timeout is due at, rounded up, and never one that has passed
+      long due = Math.max(tick, (timeout.deadline - start + tickNanos - 1) / tickNanos);
+      timeout.rounds = (due - tick) / slots.length;
+      slots[(int) (due % slots.length)].add(timeout);
+    }
+  }
+
+  private void expire(Queue<Timeout> slot) {
+    Iterator<Timeout> timeouts = slot.iterator();
+    while (timeouts.hasNext()) {
+      Timeout timeout = timeouts.next();
+      if (timeout.cancelled) {
+        timeouts.remove();
+      } else if (timeout.rounds > 0) {
+        timeout.rounds--;
+      } else {
+        timeouts.remove();
+        try {
+          timeout.task.run();
+        } catch (RuntimeException e) {
+          // one broken task must not stop all other timeouts
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+}
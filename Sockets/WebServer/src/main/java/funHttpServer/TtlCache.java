@@ -0,0 +1,167 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONObject;
+
+/**
+ * Cache for results of slow calls to another server, like the GitHub API behind
+ * the /github route. Entries expire after a fixed time (TTL) and the number of
+ * entries is bounded, the least recently used entry goes first.
+ *
+ * When several requests miss the same key at the same time, only the first one
+ * calls the loader. The others wait for its result instead of sending the same
+ * request upstream again (single flight). A failed load is not cached, every
+ * waiting request gets the error and the next request tries again.
+ *
+ * @param <V> type of the cached values
+ */
+public class TtlCache<V> {
+
+  /**
+   * Loads a value on a miss
+   */
+  public interface Loader<V> {
+    V load() throws IOException;
+  }
+
+  private static class Entry<V> {
+    final V value;
+    final long expires;
+
+    Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  private final long ttlNanos;
+  private final int maxEntries;
+
+  /** Values by key in LRU order, guarded by this */
+  private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Loads currently running, by key */
+  private final ConcurrentHashMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+
+  /**
+   * @param ttlMillis how long a value stays valid, 0 disables caching (but
+   *     concurrent misses are still coalesced)
+   * @param maxEntries upper bound for the number of cached values
+   */
+  public TtlCache(long ttlMillis, int maxEntries) {
+    this.ttlNanos = ttlMillis * 1_000_000L;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Returns the cached value or loads it
+   * @param key cache key, e.g. the query
+   * @param loader called on a miss, at most once at a time per key
+   * @return the value
+   * @throws IOException if the load failed
+   * @throws NullPointerException if key is null
+   */
+  public V get(String key, Loader<V> loader) throws IOException {
+    Objects.requireNonNull(key, "key");
+    V value = lookup(key);
+    if (value != null) {
+      hits.increment();
+      return value;
+    }
+
+    CompletableFuture<V> mine = new CompletableFuture<>();
+    CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+    if (running != null) {
+      // somebody is already fetching this key, wait for their result
+      coalesced.increment();
+      return await(running);
+    }
+
+    try {
+      // a load for this key may have finished between lookup and putIfAbsent
+      value = lookup(key);
+      if (value == null) {
+        misses.increment();
+        value = loader.load();
+        store(key, value);
+      }
+      mine.complete(value);
+      return value;
+    } catch (IOException | RuntimeException e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  private static <V> V await(CompletableFuture<V> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the upstream response", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private synchronized V lookup(String key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.expires > 0) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  private synchronized void store(String key, V value) {
+    if (ttlNanos <= 0 || maxEntries <= 0) {
+      return;
+    }
+    entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+    Iterator<Map.Entry<String, Entry<V>>> oldest = entries.entrySet().iterator();
+    while (entries.size() > maxEntries && oldest.hasNext()) {
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  /**
+   * Size and hit ratio of the cache
+   * @return JSON with entries, maxEntries, hits, misses, coalesced and hitRatio
+   */
+  public synchronized JSONObject stats() {
+    long hitCount = hits.sum();
+    long missCount = misses.sum();
+    long coalescedCount = coalesced.sum();
+    long total = hitCount + missCount + coalescedCount;
+
+    JSONObject stats = new JSONObject();
+    stats.put("entries", entries.size());
+    stats.put("maxEntries", maxEntries);
+    stats.put("hits", hitCount);
+    stats.put("misses", missCount);
+    stats.put("coalesced", coalescedCount);
+    stats.put("hitRatio", total == 0 ? 0.0 : (double) (hitCount + coalescedCount) / total);
+    return stats;
+  }
+}
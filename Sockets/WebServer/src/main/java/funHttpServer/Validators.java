@@ -0,0 +1,122 @@
+package funHttpServer;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * ETag and Last-Modified validators and the checks for conditional requests.
+ *
+ * A browser (or a CDN) that already has a copy of a page sends its validators
+ * back in If-None-Match / If-Modified-Since. When the page did not change we
+ * answer 304 Not Modified without a body and the client keeps using its copy.
+ */
+public class Validators {
+
+  /** HTTP date format, e.g. "Sun, 06 Nov 1994 08:49:37 GMT" */
+  private static final DateTimeFormatter HTTP_DATE =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * Strong ETag from the content, for bodies we hold in memory anyway
+   * @param body the exact bytes sent
+   * @return the quoted ETag
+   */
+  public static String etag(byte[] body) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+      // 16 of the 32 bytes are plenty to tell versions of a page apart
+      StringBuilder etag = new StringBuilder(34).append('"');
+      for (int i = 0; i < 16; i++) {
+        etag.append(HEX[(digest[i] >> 4) & 0xf]).append(HEX[digest[i] & 0xf]);
+      }
+      return etag.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is always available", e);
+    }
+  }
+
+  /**
+   * ETag from size and modification time, for files we stream without reading
+   * them. A new version of the file changes at least one of the two.
+   * @param file the file sent
+   * @return the quoted ETag
+   */
+  public static String etag(File file) {
+    return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+  }
+
+  /**
+   * ETag of an encoded variant, every encoding of a body needs its own
+   * @param etag ETag of the unencoded body
+   * @param encoding e.g. "gzip"
+   */
+  public static String variant(String etag, String encoding) {
+    return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+  }
+
+  /**
+   * @param millis time in milliseconds since 1970
+   * @return the time as HTTP date
+   */
+  public static String httpDate(long millis) {
+    return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+  }
+
+  /**
+   * @param date an HTTP date
+   * @return the time in milliseconds since 1970, -1 if the date is malformed
+   */
+  public static long parseHttpDate(String date) {
+    try {
+      return ZonedDateTime.parse(date.trim(), HTTP_DATE).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Checks a request's validators against the current version
+   * @param ifNoneMatch the If-None-Match header, may be null
+   * @param ifModifiedSince the If-Modified-Since header, may be null
+   * @param etag current ETag, may be null
+   * @param lastModified current modification time, 0 if unknown
+   * @return true if the client's copy is still current and 304 can be sent
+   */
+  public static boolean notModified(String ifNoneMatch, String ifModifiedSince, String etag, long lastModified) {
+    if (ifNoneMatch != null) {
+      // If-None-Match wins over If-Modified-Since when both are sent
+      if (etag == null) {
+        return false;
+      }
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.equals("*") || opaque(candidate).equals(opaque(etag))) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (ifModifiedSince != null && lastModified > 0) {
+      long since = parseHttpDate(ifModifiedSince);
+      // HTTP dates have whole seconds only
+      return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+    return false;
+  }
+
+  /**
+   * The tag without a weak "W/" prefix, If-None-Match compares weakly
+   */
+  private static String opaque(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+}
@@ -0,0 +1,273 @@
+package funHttpServer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes the sockets of clients that stall the blocking engine.
+ *
+ * A thread of the blocking engine sits in read or write for as long as the
+ * client makes it. A socket timeout only helps with reads, and it starts over
+ * with every byte, so a client sending one byte every few seconds ("slowloris")
+ * or never reading its response keeps a thread busy forever. With enough of
+ * them nobody else gets served.
+ *
+ * Every connection gets a Guard with a deadline for the phase it is in:
+ * sending its header, sending its body or taking its response. The deadlines
+ * of all connections share one TimerWheel, which closes the socket of a
+ * connection that is past its deadline and makes the blocked read or write
+ * fail right away. Moving a deadline later (every write of a response does)
+ * only changes a field, the wheel looks at it again when the old one is due.
+ *
+ * For a graceful shutdown drain closes the connections that wait for a request
+ * and lets the others finish theirs.
+ */
+public class Watchdog {
+  /** Precision of the deadlines */
+  static final int TICK_MILLIS = 100;
+
+  /** Slots of the wheel, deadlines up to TICK_MILLIS * WHEEL_SIZE need no extra turn */
+  static final int WHEEL_SIZE = 512;
+
+  /** Phases of a connection */
+  static final int HANDLING = 0;
+  static final int HEADER = 1;
+  static final int BODY = 2;
+  static final int WRITE = 3;
+
+  /**
+   * The deadline of one connection
+   */
+  public class Guard {
+    private final Socket socket;
+
+    /** System.nanoTime() when the socket is closed, 0 for no deadline */
+    private volatile long deadline;
+    private volatile int phase = HANDLING;
+    private volatile boolean expired;
+
+    /** Longest a body deadline is ahead, and bytes per second that move it */
+    private long bodyNanos;
+    private int minBodyRate;
+
+    /** The wheel's timeout for the deadline, null while none is pending */
+    private TimerWheel.Timeout timeout;
+
+    Guard(Socket socket) {
+      this.socket = socket;
+    }
+
+    /**
+     * Waiting for a request header, the whole header has to arrive in millis
+     */
+    public void header(long millis) {
+      phase = HEADER;
+      expireIn(millis);
+      if (draining) {
+        expire(); // no more requests, see drain
+      }
+    }
+
+    /**
+     * Receiving a body. The client has millis to start and then has to keep
+     * sending minRate bytes per second on average, see input.
+     */
+    public void body(long millis, int minRate) {
+      bodyNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+      minBodyRate = minRate;
+      phase = BODY;
+      expireIn(millis);
+    }
+
+    /**
+     * Sending a response, the deadline moves with every write, see output
+     */
+    public void write(long millis) {
+      phase = WRITE;
+      expireIn(millis);
+    }
+
+    /**
+     * Working on a request, no deadline
+     */
+    public void clear() {
+      phase = HANDLING;
+      deadline = 0;
+    }
+
+    /**
+     * @return true if the socket was closed because the deadline passed
+     */
+    public boolean expired() {
+      return expired;
+    }
+
+    private void expireIn(long millis) {
+      deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+      schedule();
+    }
+
+    /**
+     * Makes sure the wheel looks at the guard when the deadline is due. A
+     * timeout for a later time is replaced, one for an earlier time is kept and
+     * checks again when it runs.
+     */
+    private synchronized void schedule() {
+      long due = deadline;
+      if (due == 0 || (timeout != null && due - timeout.deadline >= 0)) {
+        return;
+      }
+      if (timeout != null) {
+        timeout.cancel();
+      }
+      timeout = wheel.schedule(due - System.nanoTime(), this::check);
+    }
+
+    /**
+     * Runs on the wheel when the timeout is due
+     */
+    private void check() {
+      synchronized (this) {
+        timeout = null;
+      }
+      long due = deadline;
+      if (due == 0) {
+        return;
+      }
+      if (System.nanoTime() - due < 0) {
+        schedule(); // the deadline moved while we waited
+        return;
+      }
+      expire();
+    }
+
+    private void expire() {
+      expired = true;
+      guards.remove(this);
+      try {
+        socket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    /**
+     * Moves the deadline to at least millis from now
+     */
+    private void extend(long millis) {
+      long later = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+      if (deadline != 0 && later - deadline > 0) {
+        deadline = later;
+      }
+    }
+
+    /**
+     * Wraps the socket's output so every write gives the client millis more to
+     * take the data: a slow download is fine, one that does not move is not
+     */
+    public OutputStream output(OutputStream out, long millis) {
+      return new FilterOutputStream(out) {
+        @Override
+        public void write(int b) throws IOException {
+          extend(millis);
+          out.write(b);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+          extend(millis);
+          out.write(data, offset, length);
+        }
+      };
+    }
+
+    /**
+     * Wraps the socket's input so the bytes of a body buy time: each one moves
+     * the deadline by 1/minRate seconds, up to the body timeout from now. A
+     * client trickling its body runs out of time, unlike with a socket timeout
+     * that starts over with every byte. Reads of the header buy nothing.
+     */
+    public InputStream input(InputStream in) {
+      return new FilterInputStream(in) {
+        @Override
+        public int read() throws IOException {
+          int b = in.read();
+          if (b >= 0) {
+            received(1);
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+          int count = in.read(data, offset, length);
+          if (count > 0) {
+            received(count);
+          }
+          return count;
+        }
+      };
+    }
+
+    private void received(int bytes) {
+      if (phase != BODY || deadline == 0) {
+        return;
+      }
+      long limit = System.nanoTime() + bodyNanos;
+      long later = deadline + bytes * TimeUnit.SECONDS.toNanos(1) / minBodyRate;
+      deadline = later - limit > 0 ? limit : later;
+    }
+  }
+
+  private final TimerWheel wheel = new TimerWheel("watchdog", TICK_MILLIS, WHEEL_SIZE);
+  private final Set<Guard> guards = ConcurrentHashMap.newKeySet();
+  private volatile boolean draining;
+
+  /**
+   * Starts watching a connection, call unwatch when it is closed
+   */
+  public Guard watch(Socket socket) {
+    Guard guard = new Guard(socket);
+    guards.add(guard);
+    return guard;
+  }
+
+  public void unwatch(Guard guard) {
+    guards.remove(guard);
+    guard.clear();
+  }
+
+  /**
+   * Closes the connections that wait for a request (or are in the middle of
+   * its header), and from now on every connection that is done with its
+   * request. Bodies and responses that are under way go on.
+   */
+  public void drain() {
+    draining = true;
+    for (Guard guard : guards) {
+      if (guard.phase == HEADER) {
+        guard.expire();
+      }
+    }
+  }
+
+  /**
+   * Closes all connections, for the end of a drain
+   * @return number of connections that were still open
+   */
+  public int closeAll() {
+    int count = 0;
+    for (Guard guard : guards) {
+      guard.expire();
+      count++;
+    }
+    return count;
+  }
+}
@@ -18,21 +18,156 @@ package funHttpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.Map;
 import java.util.LinkedHashMap;
-import java.nio.charset.Charset;
-import org.json.JSONArray;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.nio.charset.StandardCharsets;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 
 public class WebServer {
   public static void main(String args[]) {
-    WebServer server = new WebServer(9000);
+    ServerConfig config = ServerConfig.parse(args);
+
+    ExecutorService executor = config.createExecutor();
+    WebServer server = new WebServer(config);
+    // Ctrl-C or kill: finish the requests in progress before the JVM exits
+    Runtime.getRuntime().addShutdownHook(new Thread(server::drain, "drain"));
+
+    if (config.engine.equals("nio")) {
+      try {
+        new NioServer(server, config, executor).serve(config.port);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    } else {
+      server.listen(config.port, executor, config.keepAlive * 1000, config.reusePort ? config.workers : 1);
+    }
+  }
+
+  /**
+   * Cached contents of www/, the rendered root page included
+   */
+  private final StaticCache cache;
+
+  /**
+   * Whether text responses are gzip/deflate encoded for clients accepting it
+   */
+  private final boolean compression;
+
+  /**
+   * Rendered /github pages by query
+   */
+  private final TtlCache<byte[]> githubCache;
+
+  /**
+   * Base URL of the GitHub API, queries are appended to it
+   */
+  private final String githubUrl;
+
+  /**
+   * Whether /github pages are streamed while GitHub answers, only when they are
+   * not cached
+   */
+  private final boolean githubStreaming;
+
+  /**
+   * Counters and latency per route, shown at /metrics
+   */
+  private final Metrics metrics = new Metrics();
+
+  /**
+   * Where answered requests are logged, null if logging is off
+   */
+  private final AccessLog accessLog;
+
+  /**
+   * Decides whether a request is handled or answered with 503 right away, and
+   * counts the open connections of both engines
+   */
+  final AdmissionControl admission;
+
+  /**
+   * Seconds a rejected client is asked to wait before trying again
+   */
+  private final int retryAfter;
+
+  /**
+   * Pending connections the kernel keeps for the blocking engine
+   */
+  private final int backlog;
+
+  /**
+   * Time a client has to send a request header and to take its response, in
+   * milliseconds, for both engines
+   */
+  final int headerTimeoutMillis;
+  final int writeTimeoutMillis;
+
+  /**
+   * Time a client has to start sending a body, and how far ahead its deadline
+   * may move while the body arrives at MIN_BODY_RATE or faster, in milliseconds
+   */
+  final int bodyTimeoutMillis;
+
+  /**
+   * Longest a graceful shutdown waits for the requests in progress
+   */
+  private final int drainTimeoutMillis;
+
+  /**
+   * Set once the server shuts down: nothing new is accepted and connections
+   * are closed after the request they are working on
+   */
+  volatile boolean draining;
+
+  /**
+   * Listening sockets of both engines, closed when the server drains
+   */
+  private final List<Closeable> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Pushes random images to the pages subscribed at /images
+   */
+  private final ImageFeed imageFeed;
+
+  /**
+   * Closes stalled connections of the blocking engine, started by listen
+   */
+  private Watchdog watchdog;
+
+  /**
+   * Creates a server that only handles requests. listen (or another engine like
+   * the NioServer) owns the sockets.
+   * @param config the startup options
+   */
+  WebServer(ServerConfig config) {
+    cache = new StaticCache(new File("www"), config.cacheSize);
+    compression = config.compression;
+    githubCache = new TtlCache<>(config.githubTtl * 1000L, config.githubCacheSize);
+    githubUrl = config.githubUrl;
+    githubStreaming = config.githubTtl == 0;
+    accessLog = config.createAccessLog();
+    admission = config.createAdmissionControl();
+    retryAfter = config.retryAfter;
+    backlog = config.maxQueued;
+    headerTimeoutMillis = config.headerTimeout * 1000;
+    writeTimeoutMillis = config.writeTimeout * 1000;
+    bodyTimeoutMillis = config.bodyTimeout * 1000;
+    drainTimeoutMillis = config.drainTimeout * 1000;
+    imageFeed = new ImageFeed(this::pickImage, config.imageInterval);
+    if (config.cacheSize > 0) {
+      cache.watch();
+    }
   }
 
   /**
@@ -40,26 +175,91 @@ public class WebServer {
    * @param port to listen on
    */
   public WebServer(int port) {
+    this(new ServerConfig());
+    listen(port, null, 0);
+  }
+
+  /**
+   * Main thread, hands every accepted connection to the executor
+   * @param port to listen on
+   * @param executor runs one task per connection, null to serve the connections
+   *     one after the other on this thread
+   * @param keepAliveMillis how long a connection served by the executor waits
+   *     for the next request
+   */
+  void listen(int port, ExecutorService executor, int keepAliveMillis) {
+    listen(port, executor, keepAliveMillis, 1);
+  }
+
+  /**
+   * Like listen above, but with several accept loops. Each one gets a socket of
+   * its own, all bound to the same port with SO_REUSEPORT, and the kernel spreads
+   * new connections over them. There is no shared accept queue (and no lock on
+   * it) between the loops. Without an executor every loop serves its own
+   * clients one after the other, so acceptors clients are served at a time.
+   * Where SO_REUSEPORT is not available there is one accept loop as before.
+   * @param acceptors number of accept loops, 1 for the single loop on this thread
+   */
+  void listen(int port, ExecutorService executor, int keepAliveMillis, int acceptors) {
+    watchdog = new Watchdog();
+    if (acceptors > 1 && !NioServer.reusePortSupported()) {
+      System.out.println("SO_REUSEPORT is not supported here, using a single acceptor");
+      acceptors = 1;
+    }
+    for (int i = 1; i < acceptors; i++) {
+      new Thread(() -> accept(port, executor, keepAliveMillis, true), "acceptor-" + i).start();
+    }
+    accept(port, executor, keepAliveMillis, acceptors > 1);
+  }
+
+  /**
+   * One accept loop, runs until the server socket fails
+   * @param reusePort whether other loops listen on the same port
+   */
+  private void accept(int port, ExecutorService executor, int keepAliveMillis, boolean reusePort) {
     ServerSocket server = null;
     Socket sock = null;
-    InputStream in = null;
-    OutputStream out = null;
 
     try {
-      server = new ServerSocket(port);
+      // opened through a channel so accepted sockets have one too, which lets
+      // file bodies go out with FileChannel.transferTo (sendfile)
+      ServerSocketChannel channel = ServerSocketChannel.open();
+      if (reusePort) {
+        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      server = channel.socket();
+      listening(channel);
+      // without an executor this is also the queue of clients waiting for their turn
+      server.bind(new InetSocketAddress(port), backlog);
       while (true) {
         sock = server.accept();
-        out = sock.getOutputStream();
-        in = sock.getInputStream();
-        byte[] response = createResponse(in);
-        out.write(response);
-        out.flush();
-        in.close();
-        out.close();
-        sock.close();
+        if (!admission.openConnection()) {
+          refuse(sock);
+        } else if (executor == null) {
+          // this loop serves one client after the other, so keeping a connection
+          // open would lock everybody else out. Answer once and close.
+          try {
+            serveConnection(sock, 0);
+          } catch (IOException e) {
+            // e.g. the client aborted its download, only this connection is lost
+            e.printStackTrace();
+          }
+        } else {
+          // blocking calls like fetchURL only hold up this one connection's thread
+          Socket client = sock;
+          executor.execute(() -> {
+            try {
+              serveConnection(client, keepAliveMillis);
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+          });
+        }
       }
     } catch (IOException e) {
-      e.printStackTrace();
+      if (!draining) {
+        e.printStackTrace();
+      }
     } finally {
       if (sock != null) {
         try {
@@ -72,6 +272,184 @@ public class WebServer {
     }
   }
 
+  /**
+   * Remembers a listening socket, so drain can stop accepting
+   */
+  void listening(Closeable listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Shuts the server down gracefully, run by the shutdown hook. New connections
+   * are no longer accepted, connections waiting for a request are closed, and
+   * the requests in progress get up to drainTimeout to finish before whatever
+   * is still open is closed.
+   */
+  void drain() {
+    draining = true;
+    for (Closeable listener : listeners) {
+      try {
+        listener.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    if (watchdog != null) {
+      watchdog.drain();
+    }
+    imageFeed.close();
+    long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+    try {
+      // the event loops close their idle connections on their next check
+      while (admission.connections() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    int left = admission.connections();
+    if (watchdog != null) {
+      watchdog.closeAll();
+    }
+    System.out.println("Drained" + (left > 0 ? ", closed " + left + " connections still busy" : ""));
+  }
+
+  /**
+   * Answers a connection that came in while too many are open with 503 and
+   * closes it. The answer is small and the socket buffer empty, so this does
+   * not hold up the accepting thread.
+   */
+  void refuse(Socket sock) {
+    try (Socket client = sock) {
+      client.getOutputStream().write(busy().toBytes(false));
+    } catch (IOException e) {
+      // the client is gone already, nothing lost
+    }
+  }
+
+  /**
+   * The answer to requests we are too busy for
+   */
+  HttpResponse busy() {
+    return new HttpResponse(503, HttpResponse.TEXT_HTML, "Server busy, please try again later")
+        .header("Retry-After", String.valueOf(retryAfter));
+  }
+
+  /**
+   * Answers requests on one connection until the client closes it, asks for
+   * "Connection: close" or stays idle for longer than the keep alive timeout.
+   * Pipelined requests are read one after the other from the buffered stream,
+   * so their responses go out in the order the requests came in.
+   *
+   * The watchdog closes the connection when the client takes longer than
+   * headerTimeout to send a header (after the keep alive wait), sends its body
+   * slower than MIN_BODY_RATE, or when a response does not move for
+   * writeTimeout. While the server drains, the connection is closed after the
+   * request it is working on.
+   *
+   * After a "101 Switching Protocols" answer the connection is not closed but
+   * handed to the new protocol, e.g. the ImageFeed.
+   * @param sock the client connection, closed when this method returns unless
+   *     it was upgraded
+   * @param keepAliveMillis how long to wait for the next request, 0 to answer
+   *     only one request
+   */
+  void serveConnection(Socket sock, int keepAliveMillis) throws IOException {
+    Watchdog.Guard guard = watchdog.watch(sock);
+    HttpResponse.Upgrade upgrade = null;
+    try {
+      InputStream in = guard.input(sock.getInputStream());
+      RequestParser parser = new RequestParser();
+      OutputStream out = new BufferedOutputStream(guard.output(sock.getOutputStream(), writeTimeoutMillis));
+      // also ends a body that stalls, the header deadline does not cover it
+      sock.setSoTimeout(keepAliveMillis > 0 ? keepAliveMillis : headerTimeoutMillis);
+
+      boolean open = true;
+      while (open) {
+        HttpRequest request;
+        long start;
+        HttpResponse response;
+        Router.BodyConsumer consumer = null;
+        try {
+          guard.header(keepAliveMillis + headerTimeoutMillis);
+          request = parser.readHeader(in);
+          guard.clear();
+          if (request == null) {
+            break; // client closed the connection
+          }
+          start = System.nanoTime();
+          if (request.hasBody()) {
+            guard.body(bodyTimeoutMillis, MIN_BODY_RATE);
+          }
+          consumer = request.hasBody() ? stream(request) : null;
+          if (consumer != null) {
+            // the route reads the body while it arrives, any size
+            if (!parser.readBody(in, request, consumer)) {
+              consumer.abort();
+              break; // the client went away in the middle of the body
+            }
+            response = finish(request, consumer, start, true);
+          } else {
+            if (request.hasBody() && !parser.readBody(in, request)) {
+              break;
+            }
+            response = handle(request, true);
+          }
+          guard.clear();
+        } catch (IOException e) {
+          if (consumer != null) {
+            consumer.abort(); // e.g. deletes its temporary file
+          }
+          if (e instanceof RequestParser.ParseException) {
+            // e.g. a header that is too large, answer and give up on the connection
+            RequestParser.ParseException error = (RequestParser.ParseException) e;
+            new HttpResponse(error.status, HttpResponse.TEXT_HTML, e.getMessage()).writeTo(out, null, false);
+          } else if (!(e instanceof SocketTimeoutException)) {
+            throw e;
+          }
+          break; // answered the error or idle for too long
+        }
+
+        open = keepAliveMillis > 0 && request.keepAlive() && !draining;
+        log(sock.getInetAddress(), request, response, start);
+        // a file goes out in one transferTo call, give it time by its size
+        guard.write(writeTimeoutMillis + bytesSent(response) * 1000 / MIN_WRITE_RATE);
+        response.writeTo(out, sock.getChannel(), open);
+        if (response.upgrade != null) {
+          out.flush();
+          upgrade = response.upgrade;
+          break;
+        }
+        guard.clear();
+      }
+      out.flush();
+    } catch (IOException e) {
+      if (!guard.expired()) {
+        throw e;
+      }
+      // the watchdog closed the connection of a stalled client
+    } finally {
+      watchdog.unwatch(guard);
+      admission.closeConnection();
+      if (upgrade != null) {
+        upgrade.take(sock.getChannel());
+      } else {
+        sock.close();
+      }
+    }
+  }
+
+  /**
+   * Bytes per second a client is expected to take at least when it downloads
+   * a file, on top of writeTimeout
+   */
+  static final int MIN_WRITE_RATE = 16 * 1024;
+
+  /**
+   * Bytes per second a client has to send a request body at, on average
+   */
+  static final int MIN_BODY_RATE = 4 * 1024;
+
   /**
    * Used in the "/random" endpoint
    */
@@ -90,250 +468,511 @@ public class WebServer {
    * @return the byte encoded HTTP response
    */
   public byte[] createResponse(InputStream inStream) {
+    HttpRequest request = null;
+    try {
+      request = HttpRequest.read(inStream);
+    } catch (RequestParser.ParseException e) {
+      return new HttpResponse(e.status, HttpResponse.TEXT_HTML, e.getMessage()).toBytes(false);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return handle(request).toBytes(false);
+  }
 
-    byte[] response = null;
-    BufferedReader in = null;
+  /**
+   * Routes of the server, built once. Exact routes match the whole path, prefix
+   * routes everything below it.
+   */
+  private final Router router = new Router()
+      .add("", this::root)
+      .add("json", this::json)
+      .add("random", this::random)
+      .add("images", this::images)
+      // POSTed texts are streamed through these two, see stream()
+      .add("wordcount", this::wordcount, request -> new WordCounter())
+      .add("reverse", this::reverse, request -> new ReversedText())
+      .add("multiply", this::multiply)
+      .add("github", this::github)
+      .add("cache", this::cacheStats)
+      .add("metrics", this::metrics)
+      .addPrefix("file", this::file);
 
-    try {
+  /**
+   * Generates an appropriate response to the user and records it in the metrics
+   * of the route
+   * @param req the parsed request, null if the client did not send one
+   * @return the response for the request
+   */
+  HttpResponse handle(HttpRequest req) {
+    return handle(req, true);
+  }
 
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+  /**
+   * Generates a response if admission control lets the request in, 503 if not
+   * @param req the parsed request, null if the client did not send one
+   * @param mayWait whether the calling thread may wait for a free slot, false
+   *     on event loops
+   * @return the response for the request
+   */
+  HttpResponse handle(HttpRequest req, boolean mayWait) {
+    long start = System.nanoTime();
+    Router.Handler handler = req != null && req.path != null ? router.route(req) : null;
+    Metrics.Route route = metrics.route(handler != null ? req.route : Metrics.UNMATCHED);
+    route.start(req == null ? 0 : req.size());
+    HttpResponse response;
+    if (!admission.acquire(mayWait)) {
+      response = busy();
+    } else {
+      long admitted = System.nanoTime();
+      response = respond(req, handler);
+      admission.release(System.nanoTime() - admitted, response.status);
+    }
+    route.finish(response.status, bytesSent(response), start);
+    return response;
+  }
 
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
+  /**
+   * Body bytes of a response for the metrics and the access log. The size of a
+   * chunked body is not known when it is logged, it counts as 0.
+   */
+  private static long bytesSent(HttpResponse response) {
+    return response.headOnly ? 0 : Math.max(0, response.contentLength());
+  }
 
-      String request = null;
+  /**
+   * Decides whether the body of a request goes to a streaming route while it
+   * arrives. Forms are small and always buffered, their fields are parameters.
+   * @param req a request with a body, its header was read
+   * @return the consumer for the body, null to read the body into req.body and
+   *     answer with handle
+   */
+  Router.BodyConsumer stream(HttpRequest req) throws IOException {
+    if (req.path == null || !"POST".equals(req.method) || req.isForm()) {
+      return null;
+    }
+    Router.BodyHandler handler = router.routeBody(req);
+    return handler == null ? null : handler.start(req);
+  }
 
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
+  /**
+   * Answers a request whose body was streamed, the counterpart of handle
+   * @param req the request, its whole body went to the consumer
+   * @param consumer the consumer stream returned for it
+   * @param startNanos System.nanoTime() when the header was read
+   * @param mayWait whether the calling thread may wait for admission
+   * @return the response for the request
+   */
+  HttpResponse finish(HttpRequest req, Router.BodyConsumer consumer, long startNanos, boolean mayWait) {
+    Metrics.Route route = metrics.route(req.route);
+    route.start(req.size());
+    HttpResponse response;
+    if (!admission.acquire(mayWait)) {
+      consumer.abort();
+      response = busy();
+    } else {
+      long admitted = System.nanoTime();
+      try {
+        response = consumer.finish();
+      } catch (IOException | RuntimeException e) {
+        e.printStackTrace();
+        consumer.abort();
+        response = new HttpResponse(500, HttpResponse.TEXT_HTML, "<html>ERROR: " + e.getMessage() + "</html>");
+      }
+      admission.release(System.nanoTime() - admitted, response.status);
+    }
+    route.finish(response.status, bytesSent(response), startNanos);
+    return response;
+  }
 
-        System.out.println("Received: " + line);
+  /**
+   * @param req the parsed request, null if the client did not send one
+   * @param handler the route's handler, null if no route matched
+   * @return the response for the request
+   */
+  private HttpResponse respond(HttpRequest req, Router.Handler handler) {
+    try {
+      boolean head = req != null && "HEAD".equals(req.method);
+      // POST works like GET, the fields of a form are added to the parameters
+      boolean post = req != null && "POST".equals(req.method);
+      if (req == null || !("GET".equals(req.method) || head || post) || req.path == null) {
+        return new HttpResponse(400, HttpResponse.TEXT_HTML, "<html>Illegal request: no GET</html>");
+      }
 
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-          // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
+      if (handler == null) {
+        // if the request is not recognized at all
+        return new HttpResponse(400, HttpResponse.TEXT_HTML, "I am not sure what you want me to do...");
+      }
+      HttpResponse response = handler.handle(req);
+      if (response.upgrade != null) {
+        return response; // a 101 has no body to compress or validate
+      }
+      if (response.writer != null && !req.http11) {
+        response = response.buffered();
+      }
+      response = compress(req, response);
+      if (response.status == 200
+          && Validators.notModified(req.header("if-none-match"), req.header("if-modified-since"),
+              response.etag, response.lastModified)) {
+        // the client's copy is current, no need to send the body again
+        response = response.notModified();
+      }
+      // HEAD is answered like GET, just without the body
+      response.headOnly = head;
+      return response;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return new HttpResponse(500, HttpResponse.TEXT_HTML, "<html>ERROR: " + e.getMessage() + "</html>");
+    } catch (RuntimeException e) {
+      // a broken request must not take the server (or an event loop) down
+      e.printStackTrace();
+      return new HttpResponse(500, HttpResponse.TEXT_HTML, "<html>ERROR: " + e + "</html>");
+    }
+  }
+
+  /**
+   * Adds an answered request to the access log
+   * @param remote address of the client
+   * @param req the request
+   * @param response the response to it
+   * @param startNanos System.nanoTime() when the request was read
+   */
+  void log(InetAddress remote, HttpRequest req, HttpResponse response, long startNanos) {
+    if (accessLog != null) {
+      accessLog.log(remote, req, response.status, bytesSent(response), startNanos);
+    }
+  }
+
+  /**
+   * Compresses text bodies for clients that accept gzip or deflate. Bodies that
+   * came from the www/ cache are compressed once and the result is cached too.
+   * Chunked bodies are compressed while the writer produces them.
+   * @param req the request with its Accept-Encoding header
+   * @param response the response of the route
+   * @return the response to send, encoded or not
+   */
+  private HttpResponse compress(HttpRequest req, HttpResponse response) throws IOException {
+    if (!compression || (response.body == null && response.writer == null)
+        || !Compression.compressible(response.contentType)) {
+      return response;
+    }
+    // caches between us and the client must keep one copy per encoding
+    response.header("Vary", "Accept-Encoding");
 
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
+    String encoding = Compression.choose(req.header("accept-encoding"));
+    if (encoding == null) {
+      return response;
+    }
+    if (response.writer != null) {
+      HttpResponse.BodyWriter writer = response.writer;
+      return response.encoded(encoding, out -> {
+        Compression.Encoder encoder = Compression.encoder(encoding, out);
+        try {
+          writer.writeTo(encoder);
+          encoder.close();
+        } finally {
+          encoder.release(); // the body broke off, the Deflater goes back all the same
         }
+      });
+    }
+    if (response.body.length < Compression.MIN_SIZE) {
+      return response;
+    }
+    byte[] body = response.body;
+    // keyed by the ETag, so an encoding is only ever cached for the bytes it was made of
+    byte[] encoded = response.cacheKey != null && response.etag != null
+        ? cache.derived(encoding + ":" + response.etag, () -> Compression.compress(encoding, body))
+        : Compression.compress(encoding, body);
+    return response.encoded(encoding, encoded);
+  }
 
-      }
-      System.out.println("FINISHED PARSING HEADER\n");
+  /**
+   * "/" shows the default directory page
+   */
+  private HttpResponse root(HttpRequest request) throws IOException {
+    // the rendered page only changes when something in www/ changes, so we
+    // keep it in the cache instead of building it for every request
+    StaticCache.Entry page = cache.page("root.html", new File("www/root.html"), () -> {
+      // opens the root.html file
+      String template = new String(cache.file("root.html"));
+      // performs a template replacement in the page
+      return template.replace("${links}", buildFileList()).getBytes(StandardCharsets.UTF_8);
+    });
 
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
-      } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
-
-        if (request.length() == 0) {
-          // shows the default directory page
-
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
-
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
-
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
-
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
-
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
-
-          // open the index.html
-          File file = new File("www/index.html");
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
-
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
-
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
-
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
-          }
-        } else if (request.contains("wordcount?")) {
-          Map<String, String> queryPairs = splitQuery(request.replace("wordcount?", ""));
-          String text = queryPairs.get("text");
-
-          if (text == null || text.isEmpty()) {
-            // Missing or empty text parameter
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Error: Missing or empty 'text' parameter.");
-          } else {
-            // Count the number of words
-            String[] words = text.split("\\s+");
-            int wordCount = words.length;
-
-            // Build response
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Word count: ").append(wordCount);
-          }
-        } else if (request.contains("reverse?")) {
-          Map<String, String> queryPairs = splitQuery(request.replace("reverse?", ""));
-          String text = queryPairs.get("text");
-
-          if (text == null || text.isEmpty()) {
-            // Missing or empty text parameter
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Error: Missing or empty 'text' parameter.");
-          } else {
-            // Reverse the string
-            StringBuilder reversedText = new StringBuilder(text);
-            reversedText.reverse();
-
-            // Build response
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Reversed text: ").append(reversedText);
-          }
-        } else if (request.contains("multiply?")) {
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          query_pairs = splitQuery(request.replace("multiply?", ""));
-
-          String num1Str = query_pairs.get("num1");
-          String num2Str = query_pairs.get("num2");
-
-          if (num1Str == null || num2Str == null) {
-            // Missing parameters
-            builder.append("HTTP/1.1 400 Bad Request\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Error: Missing parameters. Please provide num1 and num2.");
-          } else {
-            try {
-              Integer num1 = Integer.parseInt(num1Str);
-              Integer num2 = Integer.parseInt(num2Str);
-              Integer result = num1 * num2;
-
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Result is: " + result);
-            } catch (NumberFormatException e) {
-              // Invalid parameters
-              builder.append("HTTP/1.1 400 Bad Request\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Error: Invalid parameters. num1 and num2 must be integers.");
-            }
-          }
-        } else if (request.contains("github?")) {
-          // pulls the query from the request and runs it with GitHub's REST API
-          // check out https://docs.github.com/rest/reference/
-          //
-          // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-          //     then drill down to what you care about
-          // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
-          //     "/repos/OWNERNAME/REPONAME/contributors"
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          query_pairs = splitQuery(request.replace("github?", ""));
-          String json = fetchURL("https://api.github.com/" + query_pairs.get("query"));
-          System.out.println(json);
-
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("Check the todos mentioned in the Java source file");
-          // TODO: Parse the JSON returned by your fetch and create an appropriate
-          // response based on what the assignment document asks for
+    // Generate response
+    return fromCache(page, "root.html");
+  }
 
-          try {
-            JSONArray reposArray = new JSONArray(json);
-            for (int i = 0; i < reposArray.length(); i++) {
-              JSONObject repo = reposArray.getJSONObject(i);
-              String fullName = repo.getString("full_name");
-              int id = repo.getInt("id");
-              JSONObject owner = repo.getJSONObject("owner");
-              String ownerLogin = owner.getString("login");
-
-              // Add repository information to HTML response
-              builder.append("Repository: ").append(fullName).append("<br>");
-              builder.append("ID: ").append(id).append("<br>");
-              builder.append("Owner: ").append(ownerLogin).append("<br><br>");
-            }
-          } catch (JSONException e) {
-            e.printStackTrace();
-            builder.append("Error parsing JSON data");
-          }
+  /**
+   * A response with a page from the www/ cache and the ETag and Last-Modified
+   * that were computed with it
+   * @param page the cached page
+   * @param cacheKey name of the entry, see HttpResponse.cacheKey
+   * @return the response
+   */
+  private HttpResponse fromCache(StaticCache.Entry page, String cacheKey) {
+    HttpResponse response = new HttpResponse(200, HttpResponse.TEXT_HTML, page.bytes);
+    response.cacheKey = cacheKey;
+    response.etag = page.etag;
+    response.lastModified = page.lastModified;
+    return response;
+  }
+
+  /**
+   * "/json" shows the JSON of a random image and sets the header name for that image
+   */
+  private HttpResponse json(HttpRequest request) {
+    return new HttpResponse(200, HttpResponse.APPLICATION_JSON, pickImage());
+  }
+
+  /**
+   * "/images" turns into a WebSocket that gets a new random image every
+   * imageInterval seconds, see ImageFeed. The random image page uses it
+   * instead of asking /json again and again.
+   */
+  private HttpResponse images(HttpRequest request) {
+    if (!WebSocket.isUpgrade(request)) {
+      return new HttpResponse(426, HttpResponse.TEXT_HTML, "<html>/images is a WebSocket</html>")
+          .header("Upgrade", "websocket");
+    }
+    return WebSocket.accept(request, imageFeed);
+  }
 
-          builder.append("</body></html>");
+  /**
+   * A random image as JSON, with the header name for that image
+   */
+  private String pickImage() {
+    // pick a index from the map
+    int index = random.nextInt(_images.size());
 
-          // Convert HTML response to byte array
-          byte[] responseBytes = builder.toString().getBytes();
-          return responseBytes;
+    // pull out the information
+    String header = (String) _images.keySet().toArray()[index];
+    String url = _images.get(header);
 
-        } else {
-          // if the request is not recognized at all
+    // Generate response
+    StringBuilder builder = new StringBuilder();
+    builder.append("{");
+    builder.append("\"header\":\"").append(header).append("\",");
+    builder.append("\"image\":\"").append(url).append("\"");
+    builder.append("}");
+    return builder.toString();
+  }
 
-          builder.append("HTTP/1.1 400 Bad Request\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("I am not sure what you want me to do...");
-        }
+  /**
+   * "/random" opens the random image page
+   */
+  private HttpResponse random(HttpRequest request) throws IOException {
+    // open the index.html
+    StaticCache.Entry page = cache.page("index.html");
+
+    // Generate response
+    return fromCache(page, "index.html");
+  }
+
+  /**
+   * "/cache" shows size and hit ratio of the www/ cache as JSON
+   */
+  private HttpResponse cacheStats(HttpRequest request) {
+    JSONObject stats = new JSONObject();
+    stats.put("www", cache.stats());
+    stats.put("github", githubCache.stats());
+    return new HttpResponse(200, HttpResponse.APPLICATION_JSON, stats.toString());
+  }
 
-        // Output
-        response = builder.toString().getBytes();
+  /**
+   * "/metrics" shows requests, bytes and latency per route in the Prometheus
+   * text format
+   */
+  private HttpResponse metrics(HttpRequest request) {
+    return new HttpResponse(200, Metrics.CONTENT_TYPE, metrics.render() + admission.render() + imageFeed.render());
+  }
+
+  /**
+   * "/file/<name>" sends the raw file or shows an error. Single byte ranges
+   * ("Range: bytes=100-199") are answered with 206 Partial Content.
+   */
+  private HttpResponse file(HttpRequest request) throws IOException {
+    // take the path after "file/" and try to open the file
+    File file = new File(request.pathInfo);
+
+    // only files below the directory the server runs in, no "../"
+    File base = new File("").getCanonicalFile();
+    if (!file.isFile() || !file.getCanonicalPath().startsWith(base.getPath() + File.separator)) {
+      return new HttpResponse(404, HttpResponse.TEXT_HTML, "File not found: " + file);
+    }
+
+    String type = URLConnection.guessContentTypeFromName(file.getName());
+    if (type == null) {
+      type = "application/octet-stream";
+    }
+    long size = file.length();
+
+    // the body is streamed from disk when the response is written
+    ByteRange range = ByteRange.parse(request.header("range"), size);
+    HttpResponse response;
+    if (range == ByteRange.UNSATISFIABLE) {
+      response = new HttpResponse(416, HttpResponse.TEXT_HTML, "Range not satisfiable")
+          .header("Content-Range", "bytes */" + size);
+    } else if (range != null) {
+      response = new HttpResponse(206, type, new FileBody(file, range.start, range.length))
+          .header("Content-Range", range.contentRange(size));
+    } else {
+      response = new HttpResponse(200, type, new FileBody(file, 0, size));
+    }
+    response.etag = Validators.etag(file);
+    response.lastModified = file.lastModified();
+    return response.header("Accept-Ranges", "bytes");
+  }
+
+  /**
+   * "/wordcount?text=..." counts the words in the text. A text POSTed as the
+   * body (not as a form) is counted by a WordCounter while it arrives.
+   */
+  private HttpResponse wordcount(HttpRequest request) throws IOException {
+    String text = request.params().get("text");
+
+    if (text == null || text.isEmpty()) {
+      // Missing or empty text parameter
+      return new HttpResponse(400, HttpResponse.TEXT_HTML, "Error: Missing or empty 'text' parameter.");
+    } else {
+      // Count the number of words
+      long wordCount = WordCounter.count(text);
+
+      // Build response
+      return new HttpResponse(200, HttpResponse.TEXT_HTML, "Word count: " + wordCount);
+    }
+  }
+
+  /**
+   * "/reverse?text=..." reverses the text. A text POSTed as the body (not as a
+   * form) is reversed by ReversedText, from a temporary file if it is large.
+   */
+  private HttpResponse reverse(HttpRequest request) throws IOException {
+    String text = request.params().get("text");
+
+    if (text == null || text.isEmpty()) {
+      // Missing or empty text parameter
+      return new HttpResponse(400, HttpResponse.TEXT_HTML, "Error: Missing or empty 'text' parameter.");
+    } else {
+      // Reverse the string
+      StringBuilder reversedText = new StringBuilder(text);
+      reversedText.reverse();
+
+      // Build response
+      return new HttpResponse(200, HttpResponse.TEXT_HTML, "Reversed text: " + reversedText);
+    }
+  }
+
+  /**
+   * "/multiply?num1=3&num2=4" multiplies the two inputs
+   */
+  private HttpResponse multiply(HttpRequest request) throws IOException {
+    Map<String, String> query_pairs = request.params();
+
+    String num1Str = query_pairs.get("num1");
+    String num2Str = query_pairs.get("num2");
+
+    if (num1Str == null || num2Str == null) {
+      // Missing parameters
+      return new HttpResponse(400, HttpResponse.TEXT_HTML, "Error: Missing parameters. Please provide num1 and num2.");
+    } else {
+      try {
+        Integer num1 = Integer.parseInt(num1Str);
+        Integer num2 = Integer.parseInt(num2Str);
+        Integer result = num1 * num2;
+
+        return new HttpResponse(200, HttpResponse.TEXT_HTML, "Result is: " + result);
+      } catch (NumberFormatException e) {
+        // Invalid parameters
+        return new HttpResponse(400, HttpResponse.TEXT_HTML, "Error: Invalid parameters. num1 and num2 must be integers.");
+      }
+    }
+  }
+
+  /**
+   * "/github?query=users/amehlhase316/repos" lists the repos GitHub returns
+   */
+  private HttpResponse github(HttpRequest request) throws IOException {
+    // pulls the query from the request and runs it with GitHub's REST API
+    // check out https://docs.github.com/rest/reference/
+    //
+    // HINT: REST is organized by nesting topics. Figure out the biggest one first,
+    //     then drill down to what you care about
+    // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
+    //     "/repos/OWNERNAME/REPONAME/contributors"
+
+    Map<String, String> query_pairs = request.params();
+    String query = query_pairs.get("query");
+    if (query == null) {
+      return new HttpResponse(400, HttpResponse.TEXT_HTML, "Error: Missing parameter. Please provide query.");
+    }
+
+    InputStream json;
+    try {
+      if (!githubStreaming || "HEAD".equals(request.method)) {
+        // the same query within the TTL is answered from the cache, and concurrent
+        // requests for a query that is not cached share one upstream call
+        byte[] page = githubCache.get(query, () -> {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          renderRepos(open(githubUrl + query), out);
+          return out.toByteArray();
+        });
+        return new HttpResponse(200, HttpResponse.TEXT_HTML, page);
       }
+      json = open(githubUrl + query);
     } catch (IOException e) {
+      System.out.println("Exception in url request:" + e.getMessage());
+      return new HttpResponse(502, HttpResponse.TEXT_HTML, "Could not reach GitHub: " + e.getMessage());
+    }
+    // nothing is cached, so the page goes out while GitHub's answer comes in
+    return new HttpResponse(200, HttpResponse.TEXT_HTML, out -> renderRepos(json, out));
+  }
+
+  /**
+   * Turns the JSON list of repos returned by GitHub into our HTML page. The list
+   * is parsed one repo at a time and each repo is written as soon as it is
+   * parsed, so neither the JSON nor the page is ever held as a whole.
+   * @param json response of the GitHub API, closed when done
+   * @param body where the page goes
+   */
+  private void renderRepos(InputStream json, OutputStream body) throws IOException {
+    Writer out = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+    out.write("Check the todos mentioned in the Java source file");
+    // TODO: Parse the JSON returned by your fetch and create an appropriate
+    // response based on what the assignment document asks for
+
+    try (Reader in = new InputStreamReader(json, StandardCharsets.UTF_8)) {
+      JSONTokener tokener = new JSONTokener(in);
+      if (tokener.nextClean() != '[') {
+        throw tokener.syntaxError("A JSONArray text must start with '['");
+      }
+      char next = tokener.nextClean();
+      while (next != ']') {
+        tokener.back();
+        JSONObject repo = new JSONObject(tokener);
+        String fullName = repo.getString("full_name");
+        int id = repo.getInt("id");
+        JSONObject owner = repo.getJSONObject("owner");
+        String ownerLogin = owner.getString("login");
+
+        // Add repository information to HTML response
+        out.append("Repository: ").append(fullName).append("<br>");
+        out.append("ID: ").append(Integer.toString(id)).append("<br>");
+        out.append("Owner: ").append(ownerLogin).append("<br><br>");
+
+        next = tokener.nextClean();
+        if (next == ',') {
+          next = tokener.nextClean();
+        } else if (next != ']') {
+          throw tokener.syntaxError("Expected a ',' or ']'");
+        }
+      }
+    } catch (JSONException e) {
       e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
+      out.write("Error parsing JSON data");
     }
 
-    return response;
+    out.write("</body></html>");
+    out.flush();
   }
 
 
@@ -351,6 +990,11 @@ public class WebServer {
     // ["q=hello+world%2Fme", "bob=5"]
     for (String pair : pairs) {
       int idx = pair.indexOf("=");
+      if (idx < 0) {
+        // "flag" without a value
+        query_pairs.put(URLDecoder.decode(pair, "UTF-8"), "");
+        continue;
+      }
       query_pairs.put(URLDecoder.decode(pair.substring(0, idx), "UTF-8"),
           URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
     }
@@ -412,34 +1056,49 @@ public class WebServer {
    * non-blocking request.
    *
    * @param aUrl the String indicating the query url for the OMDb api search
-   * @return the String result of the http request.
+   * @return the String result of the http request, empty if the request failed
    *
    **/
   public String fetchURL(String aUrl) {
-    StringBuilder sb = new StringBuilder();
-    URLConnection conn = null;
-    InputStreamReader in = null;
     try {
-      URL url = new URL(aUrl);
-      conn = url.openConnection();
-      if (conn != null)
-        conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
-      if (conn != null && conn.getInputStream() != null) {
-        in = new InputStreamReader(conn.getInputStream(), Charset.defaultCharset());
-        BufferedReader br = new BufferedReader(in);
-        if (br != null) {
-          int ch;
-          // read the next character until end of reader
-          while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
-          }
-          br.close();
-        }
-      }
-      in.close();
-    } catch (Exception ex) {
+      return fetch(aUrl);
+    } catch (IOException ex) {
       System.out.println("Exception in url request:" + ex.getMessage());
+      return "";
+    }
+  }
+
+  /**
+   * Same as fetchURL but reports a failed request instead of returning an
+   * empty result, so a failure is never cached
+   *
+   * @param aUrl the url to request
+   * @return the body of the response
+   * @throws IOException if the request fails or times out
+   */
+  public String fetch(String aUrl) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    try (Reader in = new InputStreamReader(open(aUrl), StandardCharsets.UTF_8)) {
+      // read blocks of characters until end of reader
+      char[] buffer = new char[8192];
+      int numRead;
+      while ((numRead = in.read(buffer)) != -1) {
+        sb.append(buffer, 0, numRead);
+      }
     }
     return sb.toString();
   }
+
+  /**
+   * Opens a URL for reading
+   * @param aUrl URL to read
+   * @return the body of the answer
+   * @throws IOException if the server cannot be reached or answers with an error
+   */
+  private static InputStream open(String aUrl) throws IOException {
+    URLConnection conn = new URL(aUrl).openConnection();
+    conn.setConnectTimeout(20 * 1000);
+    conn.setReadTimeout(20 * 1000); // timeout in 20 seconds
+    return conn.getInputStream();
+  }
 }
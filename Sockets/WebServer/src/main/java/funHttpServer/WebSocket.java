@@ -0,0 +1,181 @@
+package funHttpServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The parts of the WebSocket protocol (RFC 6455) the server needs: the
+ * handshake, encoding the frames we send and decoding the frames a client sends.
+ *
+ * A WebSocket starts as an HTTP GET with "Upgrade: websocket". The server
+ * answers "101 Switching Protocols" and from then on both sides send frames
+ * over the same connection:
+ *
+ *   byte 0: FIN bit (last frame of a message) and the opcode (1 text, 8 close, 9 ping, 10 pong)
+ *   byte 1: MASK bit and the payload length, 126 and 127 mean a 2 or 8 byte length follows
+ *   then the 4 byte masking key (only in frames from the client) and the payload
+ *
+ * Frames from a client are always masked: every payload byte is XORed with
+ * the key. Frames from the server are not.
+ */
+public final class WebSocket {
+  static final int TEXT = 0x1;
+  static final int BINARY = 0x2;
+  static final int CLOSE = 0x8;
+  static final int PING = 0x9;
+  static final int PONG = 0xA;
+
+  /** Added to the client's key before hashing, fixed by the RFC */
+  private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  /** Largest data frame we accept from a client, it is read and ignored */
+  static final int MAX_FRAME = 64 * 1024;
+
+  private WebSocket() {
+  }
+
+  /**
+   * @return true if the request asks to become a WebSocket
+   */
+  static boolean isUpgrade(HttpRequest request) {
+    String upgrade = request.header("upgrade");
+    String connection = request.header("connection");
+    return request.http11 && "GET".equals(request.method)
+        && upgrade != null && upgrade.equalsIgnoreCase("websocket")
+        && connection != null && connection.toLowerCase().contains("upgrade")
+        && "13".equals(request.header("sec-websocket-version"))
+        && request.header("sec-websocket-key") != null;
+  }
+
+  /**
+   * The 101 answer to an upgrade request
+   * @param request a request isUpgrade accepted
+   * @param upgrade takes the connection once the answer is written
+   */
+  static HttpResponse accept(HttpRequest request, HttpResponse.Upgrade upgrade) {
+    HttpResponse response = new HttpResponse(101, HttpResponse.TEXT_HTML, new byte[0]);
+    response.upgrade = upgrade;
+    return response
+        .header("Upgrade", "websocket")
+        .header("Connection", "Upgrade")
+        .header("Sec-WebSocket-Accept", acceptKey(request.header("sec-websocket-key").trim()));
+  }
+
+  /**
+   * Base64 of the SHA-1 of the client's key and the GUID, proves to the client
+   * that we speak WebSocket
+   */
+  static String acceptKey(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      byte[] hash = sha1.digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+      return Base64.getEncoder().encodeToString(hash);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Every Java has SHA-1", e);
+    }
+  }
+
+  /**
+   * Encodes a whole message as one unmasked frame
+   * @return the frame, ready to be written
+   */
+  static ByteBuffer frame(int opcode, byte[] payload) {
+    int length = payload.length;
+    int header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+    ByteBuffer frame = ByteBuffer.allocate(header + length);
+    frame.put((byte) (0x80 | opcode));
+    if (length < 126) {
+      frame.put((byte) length);
+    } else if (length <= 0xFFFF) {
+      frame.put((byte) 126).putShort((short) length);
+    } else {
+      frame.put((byte) 127).putLong(length);
+    }
+    frame.put(payload);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Takes the frames of a client apart as their bytes arrive
+   */
+  static class Decoder {
+    /**
+     * Gets the frames
+     */
+    interface Handler {
+      /**
+       * @param opcode type of the frame
+       * @param payload the unmasked payload of a control frame, empty for
+       *     data frames, whose payload is skipped
+       */
+      void frame(int opcode, byte[] payload);
+    }
+
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    /** Bytes of a data frame's payload still to be skipped */
+    private long skip;
+
+    /**
+     * Decodes the complete frames at the start of the buffer
+     * @param in bytes received, between position and limit. Decoded bytes are
+     *     consumed, the start of an incomplete frame is left in the buffer.
+     * @return false if the client broke the protocol and must be disconnected
+     */
+    boolean feed(ByteBuffer in, Handler handler) {
+      while (true) {
+        if (skip > 0) {
+          int count = (int) Math.min(skip, in.remaining());
+          in.position(in.position() + count);
+          skip -= count;
+          if (skip > 0) {
+            return true;
+          }
+        }
+        if (in.remaining() < 2) {
+          return true;
+        }
+        int start = in.position();
+        int first = in.get(start) & 0xFF;
+        int second = in.get(start + 1) & 0xFF;
+        if ((second & 0x80) == 0) {
+          return false; // a client must mask its frames
+        }
+        int opcode = first & 0x0F;
+        int lengthBytes = (second & 0x7F) == 126 ? 2 : (second & 0x7F) == 127 ? 8 : 0;
+        if (in.remaining() < 2 + lengthBytes + 4) {
+          return true;
+        }
+        long length = lengthBytes == 0 ? second & 0x7F
+            : lengthBytes == 2 ? in.getShort(start + 2) & 0xFFFF : in.getLong(start + 2);
+        int maskAt = start + 2 + lengthBytes;
+        if (opcode >= CLOSE) {
+          // control frames are short and never split, we need their payload
+          if (length > 125 || (first & 0x80) == 0) {
+            return false;
+          }
+          if (in.remaining() < 2 + lengthBytes + 4 + length) {
+            return true;
+          }
+          byte[] payload = new byte[(int) length];
+          for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (in.get(maskAt + 4 + i) ^ in.get(maskAt + (i & 3)));
+          }
+          in.position(maskAt + 4 + payload.length);
+          handler.frame(opcode, payload);
+        } else {
+          if (length < 0 || length > MAX_FRAME) {
+            return false;
+          }
+          in.position(maskAt + 4);
+          skip = length;
+          handler.frame(opcode, NO_PAYLOAD);
+        }
+      }
+    }
+  }
+}
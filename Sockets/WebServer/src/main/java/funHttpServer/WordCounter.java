@@ -0,0 +1,53 @@
+package funHttpServer;
+
+/**
+ * Counts words in one pass: a word is a run of characters that are not
+ * whitespace (space, tab, line breaks, form feed and vertical tab, like \s in a
+ * regular expression). The counter only remembers whether the last character was
+ * inside a word, so it can be fed a text in pieces of any size and never
+ * allocates anything, which is how /wordcount counts a POST body of many
+ * megabytes while it arrives.
+ *
+ * Fed UTF-8 bytes, every byte of a multi-byte character is >= 0x80 and
+ * therefore counts as part of a word, just like the character would.
+ */
+public class WordCounter implements Router.BodyConsumer {
+  private long words;
+  private long length;
+  private boolean inWord;
+
+  /**
+   * Counts the words in a text
+   */
+  public static long count(CharSequence text) {
+    WordCounter counter = new WordCounter();
+    for (int i = 0; i < text.length(); i++) {
+      counter.next(text.charAt(i));
+    }
+    return counter.words;
+  }
+
+  @Override
+  public void accept(byte[] data, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      next(data[i]);
+    }
+    this.length += length;
+  }
+
+  private void next(int c) {
+    boolean space = c == ' ' || (c >= '\t' && c <= '\r');
+    if (!space && !inWord) {
+      words++;
+    }
+    inWord = !space;
+  }
+
+  @Override
+  public HttpResponse finish() {
+    if (length == 0) {
+      return new HttpResponse(400, HttpResponse.TEXT_HTML, "Error: Missing or empty text.");
+    }
+    return new HttpResponse(200, HttpResponse.TEXT_HTML, "Word count: " + words);
+  }
+}
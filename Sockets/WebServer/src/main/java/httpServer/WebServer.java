@@ -2,115 +2,213 @@ package httpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import funHttpServer.ByteRange;
+import funHttpServer.Validators;
 
 class WebServer {
 
-    // 
+    //
     public static void main(String args[]) {
         if (args.length != 1) {
             System.out.println("Usage: WebServer <port>");
             System.exit(1);
         }
-        
+
         WebServer server = new WebServer(Integer.parseInt(args[0]));
     }
 
     public WebServer(int port) {
-        
+
         ServerSocket    server = null;
         Socket          sock = null;
-        InputStream     in = null;
-        OutputStream    out = null;
 
         //*** Open the server socket on the specified port
         //*** Loop forever accepting socket requests
-        //***   Get the response bytes from createResponse
-        //***   Write the bytes to the socket's output stream
-        //***   close streams and socket appropriatels
+        //***   Write the response for the request to the socket
+        //***   close streams and socket appropriately
+        try {
+            // opened through a channel so accepted sockets have one too,
+            // which we need to send files with transferTo
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(port));
+            while (true) {
+                sock = server.accept();
+                try {
+                    writeResponse(sock.getInputStream(), sock);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    sock.close();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 
-    public byte[] createResponse(InputStream inStream) {
+    /**
+     * Reads the request and writes the response. Files are not read into
+     * memory, FileChannel.transferTo sends them straight from disk to the
+     * socket (sendfile), so even huge files cost no heap. HEAD requests and
+     * single byte ranges ("Range: bytes=0-99") are supported, and so are
+     * conditional requests (If-None-Match, If-Modified-Since) which get a 304
+     * without the body when the client's copy is still current.
+     */
+    public void writeResponse(InputStream inStream, Socket sock)
+        throws IOException {
 
-        byte[] response = null;
-        BufferedReader in = null;
+        OutputStream out = sock.getOutputStream();
 
-        try {
+        // Read from socket's input stream.  Must use an
+        // InputStreamReader to bridge from streams to a reader
+        BufferedReader in = new BufferedReader(
+                    new InputStreamReader(inStream, "UTF-8"));
 
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                        new InputStreamReader(inStream, "UTF-8"));
+        // Get header and save the filename from the GET line:
+        //    example GET format: GET /index.html HTTP/1.1
 
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
+        String filename = null;
+        boolean head = false;
+        String range = null;
+        String ifNoneMatch = null;
+        String ifModifiedSince = null;
 
-            String filename = null;
-
-            boolean done = false;
-            while (!done) {
-                String line = in.readLine();
+        boolean done = false;
+        while (!done) {
+            String line = in.readLine();
 
 System.out.println("Received: " + line);
-                if (line == null || line.equals(""))
-                    done = true;
+            if (line == null || line.equals(""))
+                done = true;
 
-                else if (line.startsWith("GET")) {
-                    int firstSpace = line.indexOf(" ");
-                    int secondSpace = line.indexOf(" ", firstSpace+1);
+            else if (line.startsWith("GET ") || line.startsWith("HEAD ")) {
+                int firstSpace = line.indexOf(" ");
+                int secondSpace = line.indexOf(" ", firstSpace+1);
 
-                    // skipt the leading / (our docroot is the current dir)
+                // skipt the leading / (our docroot is the current dir)
+                if (secondSpace > firstSpace+1)
                     filename = line.substring(firstSpace+2, secondSpace);
-                }
-
+                head = line.startsWith("HEAD");
             }
+
+            else if (line.toLowerCase().startsWith("range:"))
+                range = line.substring("range:".length()).trim();
+
+            else if (line.toLowerCase().startsWith("if-none-match:"))
+                ifNoneMatch = line.substring("if-none-match:".length()).trim();
+
+            else if (line.toLowerCase().startsWith("if-modified-since:"))
+                ifModifiedSince = line.substring("if-modified-since:".length()).trim();
+
+        }
 System.out.println("FINISHED\n");
 
 
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                    "<html>Illegal request: no GET</html>".getBytes();
-            } else {
-            
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: " +
-                                filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
-            }
+        // Generate an appropriate response to the user
+        if (filename == null) {
+            writeText(out, "400 Bad Request",
+                "<html>Illegal request: no GET</html>", head);
+            return;
         }
-        catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: " +
-                        e.getMessage() + "</html>").getBytes();
+
+        File file = new File(filename);
+        if (!file.isFile()) {
+            writeText(out, "404 Not Found",
+                "<html>File not found: " + filename + "</html>", head);
+            return;
+        }
+
+        String etag = Validators.etag(file);
+        long lastModified = file.lastModified();
+        String validators = "ETag: " + etag + "\r\n"
+                          + "Last-Modified: " + Validators.httpDate(lastModified) + "\r\n";
+        if (Validators.notModified(ifNoneMatch, ifModifiedSince, etag, lastModified)) {
+            out.write(("HTTP/1.1 304 Not Modified\r\n"
+                     + validators
+                     + "Connection: close\r\n\r\n").getBytes());
+            out.flush();
+            return;
+        }
+
+        long size = file.length();
+        ByteRange byteRange = ByteRange.parse(range, size);
+        if (byteRange == ByteRange.UNSATISFIABLE) {
+            out.write(("HTTP/1.1 416 Range Not Satisfiable\r\n"
+                     + "Content-Range: bytes */" + size + "\r\n"
+                     + "Content-Length: 0\r\n"
+                     + "Connection: close\r\n\r\n").getBytes());
+            out.flush();
+            return;
         }
 
-        return response;
+        long start = 0;
+        long length = size;
+        StringBuilder header = new StringBuilder();
+        if (byteRange == null) {
+            header.append("HTTP/1.1 200 OK\r\n");
+        } else {
+            start = byteRange.start;
+            length = byteRange.length;
+            header.append("HTTP/1.1 206 Partial Content\r\n");
+            header.append("Content-Range: ")
+                  .append(byteRange.contentRange(size)).append("\r\n");
+        }
+        String type = URLConnection.guessContentTypeFromName(file.getName());
+        header.append("Content-Type: ")
+              .append(type != null ? type : "application/octet-stream")
+              .append("\r\n");
+        header.append("Content-Length: ").append(length).append("\r\n");
+        header.append("Accept-Ranges: bytes\r\n");
+        header.append(validators);
+        header.append("Connection: close\r\n\r\n");
+        out.write(header.toString().getBytes());
+        out.flush();
+
+        if (!head) {
+            sendFile(file, start, length, sock.getChannel());
+        }
     }
 
-    /** Read bytes from a file and return them in the byte array.
-        We read in blocks of 512 bytes for efficiency.
-    */
-    public static byte[] readFileInBytes(File f)
+    /**
+     * Sends a small text response
+     */
+    private static void writeText(OutputStream out, String status,
+                                  String text, boolean head)
         throws IOException {
 
-        FileInputStream file = new FileInputStream(f);
-        ByteArrayOutputStream data = new ByteArrayOutputStream(file.available());
-
-        byte buffer[] = new byte[512];
-        int numRead = file.read(buffer);
-        while (numRead > 0) {
-            data.write(buffer, 0, numRead);
-            numRead = file.read(buffer);
-        }
-        file.close();
+        byte[] body = text.getBytes();
+        out.write(("HTTP/1.1 " + status + "\r\n"
+                 + "Content-Type: text/html; charset=utf-8\r\n"
+                 + "Content-Length: " + body.length + "\r\n"
+                 + "Connection: close\r\n\r\n").getBytes());
+        if (!head)
+            out.write(body);
+        out.flush();
+    }
 
-        byte[] result =  data.toByteArray();
-        data.close();
+    /**
+     * Copies a region of the file to the socket without going through the
+     * heap. transferTo may send less than asked for, so we loop.
+     */
+    public static void sendFile(File f, long start, long length,
+                                SocketChannel target)
+        throws IOException {
 
-        return result;
+        try (FileChannel file = FileChannel.open(f.toPath(),
+                                                 StandardOpenOption.READ)) {
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, target);
+                if (sent == 0 && position >= file.size())
+                    throw new IOException("File got shorter while sending it");
+                position += sent;
+            }
+        }
     }
 }
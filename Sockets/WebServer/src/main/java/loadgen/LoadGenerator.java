@@ -0,0 +1,416 @@
+package loadgen;
+
+import funHttpServer.Histogram;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONObject;
+
+/**
+ * Load generator for the web servers in this project.
+ *
+ * It sends requests at a fixed rate no matter how fast the server answers (open
+ * loop), like many independent users would. Request i is due at start + i / rate.
+ * Each connection takes the next due request, waits until it is due, sends it
+ * and reads the response. If the server is slow, all connections are busy and
+ * the following requests start late. Their latency is still measured from the
+ * time they were due, not from the time they were sent, otherwise a server that
+ * stalls would look fast because the stall held back the requests that would
+ * have measured it (coordinated omission).
+ *
+ * Options are --name=value pairs:
+ *
+ *   --host=localhost --port=9000      the server
+ *   --rate=1000                       requests per second
+ *   --duration=10                     seconds to send requests for
+ *   --warmup=2                        seconds of requests sent first and not measured
+ *   --connections=16                  connections (and threads) sending requests
+ *   --keepAlive=true                  reuse connections, false opens one per request
+ *   --mix=/:1,/json:2                 paths and their weights
+ *   --out=result.json                 also write the report to this file
+ *
+ * The report (throughput, errors, status codes and latency percentiles overall
+ * and per path) is printed as JSON.
+ *
+ * funHttpServer.WebServer has the routes of the default mix. httpServer.WebServer
+ * and SimpleWebServer only serve files, use a mix like --mix=/README.md:1 for them.
+ */
+public class LoadGenerator {
+  /** Default mix, the routes of funHttpServer.WebServer */
+  static final String DEFAULT_MIX = "/:1,/json:1,/multiply?num1=3&num2=4:1,/wordcount?text=the+quick+brown+fox:1";
+
+  /** How long we wait for a connection or a response before counting an error */
+  static final int TIMEOUT_MILLIS = 10_000;
+
+  String host = "localhost";
+  int port = 9000;
+  int rate = 1000;
+  int duration = 10;
+  int warmup = 2;
+  int connections = 16;
+  boolean keepAlive = true;
+  String mix = DEFAULT_MIX;
+  String out;
+
+  /** Paths of the mix, repeated by their weights, request i uses schedule[i % length] */
+  private String[] schedule;
+
+  /** Request bytes per path */
+  private final Map<String, byte[]> requests = new LinkedHashMap<>();
+
+  private final Map<String, Histogram> latencies = new LinkedHashMap<>();
+  private final Histogram latency = new Histogram();
+  private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder connects = new LongAdder();
+  private final AtomicLong next = new AtomicLong();
+  private long startNanos;
+  private long total;
+
+  /** Requests sent during the warm up, they are not measured */
+  private long warmupRequests;
+
+  public static void main(String[] args) throws Exception {
+    LoadGenerator generator = parse(args);
+    JSONObject report = generator.run();
+    String json = report.toString(2);
+    System.out.println(json);
+    if (generator.out != null) {
+      try (Writer writer = new FileWriter(generator.out, StandardCharsets.UTF_8)) {
+        writer.write(json);
+      }
+    }
+  }
+
+  static LoadGenerator parse(String[] args) {
+    LoadGenerator generator = new LoadGenerator();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) {
+        usage("Malformed option: " + arg);
+      }
+      String name = arg.substring(2, eq);
+      String value = arg.substring(eq + 1);
+      try {
+        switch (name) {
+          case "host":
+            generator.host = value;
+            break;
+          case "port":
+            generator.port = Integer.parseInt(value);
+            break;
+          case "rate":
+            generator.rate = Integer.parseInt(value);
+            break;
+          case "duration":
+            generator.duration = Integer.parseInt(value);
+            break;
+          case "warmup":
+            generator.warmup = Integer.parseInt(value);
+            break;
+          case "connections":
+            generator.connections = Integer.parseInt(value);
+            break;
+          case "keepAlive":
+            generator.keepAlive = Boolean.parseBoolean(value);
+            break;
+          case "mix":
+            generator.mix = value;
+            break;
+          case "out":
+            generator.out = value;
+            break;
+          default:
+            usage("Unknown option: " + name);
+        }
+      } catch (NumberFormatException e) {
+        usage("[" + name + "] must be integer");
+      }
+    }
+    if (generator.rate <= 0 || generator.duration <= 0 || generator.connections <= 0 || generator.warmup < 0) {
+      usage("rate, duration and connections must be positive");
+    }
+    return generator;
+  }
+
+  private static void usage(String message) {
+    System.out.println(message);
+    System.out.println("Expected arguments: [--host=<host>] [--port=<int>] [--rate=<requests per second>]"
+        + " [--duration=<seconds>] [--warmup=<seconds>] [--connections=<int>] [--keepAlive=true|false]"
+        + " [--mix=<path>:<weight>,...] [--out=<file>]");
+    System.exit(1);
+  }
+
+  /**
+   * Splits the mix into the schedule and prepares the request bytes
+   */
+  private void prepare() {
+    List<String> paths = new ArrayList<>();
+    for (String entry : mix.split(",")) {
+      // the weight follows the last ":", the path itself may contain one
+      int colon = entry.lastIndexOf(':');
+      String path = colon < 0 ? entry : entry.substring(0, colon);
+      int weight = 1;
+      if (colon >= 0) {
+        try {
+          weight = Integer.parseInt(entry.substring(colon + 1));
+        } catch (NumberFormatException e) {
+          usage("Weight of " + path + " must be integer");
+        }
+      }
+      if (!path.startsWith("/")) {
+        path = "/" + path;
+      }
+      for (int i = 0; i < weight; i++) {
+        paths.add(path);
+      }
+      String request = "GET " + path + " HTTP/1.1\r\n"
+          + "Host: " + host + ":" + port + "\r\n"
+          + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+      requests.put(path, request.getBytes(StandardCharsets.UTF_8));
+      latencies.put(path, new Histogram());
+    }
+    if (paths.isEmpty()) {
+      usage("The mix is empty");
+    }
+    schedule = paths.toArray(new String[0]);
+  }
+
+  /**
+   * Sends all requests and waits for the responses
+   * @return the report
+   */
+  JSONObject run() throws InterruptedException {
+    prepare();
+    warmupRequests = (long) rate * warmup;
+    total = warmupRequests + (long) rate * duration;
+    startNanos = System.nanoTime() + 100_000_000L; // give the threads time to start
+    Thread[] threads = new Thread[connections];
+    for (int i = 0; i < connections; i++) {
+      threads[i] = new Thread(this::sendRequests, "load-" + i);
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsedNanos = System.nanoTime() - startNanos - warmup * 1_000_000_000L;
+    return report(elapsedNanos);
+  }
+
+  /**
+   * One connection: take the next due request, send it, read the response
+   */
+  private void sendRequests() {
+    Connection connection = null;
+    long i;
+    while ((i = next.getAndIncrement()) < total) {
+      long due = startNanos + i * 1_000_000_000L / rate;
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+        while (System.nanoTime() < due) {
+          Thread.onSpinWait(); // parkNanos may wake up a little early
+        }
+      }
+
+      String path = schedule[(int) (i % schedule.length)];
+      try {
+        if (connection == null) {
+          connection = new Connection(host, port);
+          connects.increment();
+        }
+        int status = connection.exchange(requests.get(path));
+        // the warm up requests only get the JIT of both sides going
+        if (i >= warmupRequests) {
+          long micros = (System.nanoTime() - due) / 1000;
+          latency.record(micros);
+          latencies.get(path).record(micros);
+          statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+        if (!keepAlive || connection.closed) {
+          connection.close();
+          connection = null;
+        }
+      } catch (IOException | RuntimeException e) {
+        // refused, timed out or a response we could not parse
+        if (i >= warmupRequests) {
+          errors.increment();
+        }
+        if (connection != null) {
+          connection.close();
+          connection = null;
+        }
+      }
+    }
+    if (connection != null) {
+      connection.close();
+    }
+  }
+
+  private JSONObject report(long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    Histogram.Snapshot all = latency.snapshot();
+
+    JSONObject report = new JSONObject();
+    report.put("target", host + ":" + port);
+    report.put("rate", rate);
+    report.put("duration", duration);
+    report.put("connections", connections);
+    report.put("keepAlive", keepAlive);
+    report.put("mix", mix);
+    report.put("warmup", warmup);
+    report.put("requests", total - warmupRequests);
+    report.put("completed", all.count());
+    report.put("errors", errors.sum());
+    report.put("connects", connects.sum());
+    report.put("elapsedSeconds", seconds);
+    report.put("throughput", all.count() / seconds);
+
+    JSONObject statusCounts = new JSONObject();
+    for (Map.Entry<Integer, LongAdder> status : statuses.entrySet()) {
+      statusCounts.put(String.valueOf(status.getKey()), status.getValue().sum());
+    }
+    report.put("statuses", statusCounts);
+    report.put("latencyMillis", percentiles(all));
+
+    JSONObject paths = new JSONObject();
+    for (Map.Entry<String, Histogram> path : latencies.entrySet()) {
+      paths.put(path.getKey(), percentiles(path.getValue().snapshot()));
+    }
+    report.put("paths", paths);
+    return report;
+  }
+
+  private static JSONObject percentiles(Histogram.Snapshot snapshot) {
+    JSONObject result = new JSONObject();
+    result.put("count", snapshot.count());
+    result.put("mean", snapshot.count() == 0 ? 0 : snapshot.sum() / 1000.0 / snapshot.count());
+    result.put("p50", snapshot.quantile(0.5) / 1000.0);
+    result.put("p90", snapshot.quantile(0.9) / 1000.0);
+    result.put("p99", snapshot.quantile(0.99) / 1000.0);
+    result.put("p999", snapshot.quantile(0.999) / 1000.0);
+    result.put("max", snapshot.quantile(1.0) / 1000.0);
+    return result;
+  }
+
+  /**
+   * A client connection that sends one request and reads one response at a time
+   */
+  static class Connection {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+    /** Set when the server said it closes the connection after the response */
+    boolean closed;
+
+    Connection(String host, int port) throws IOException {
+      socket = new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+      socket.setSoTimeout(TIMEOUT_MILLIS);
+      in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+      out = socket.getOutputStream();
+    }
+
+    /**
+     * Sends a request and reads the whole response
+     * @return the status code
+     */
+    int exchange(byte[] request) throws IOException {
+      out.write(request);
+      out.flush();
+
+      String statusLine = readLine();
+      if (statusLine == null || !statusLine.startsWith("HTTP/")) {
+        throw new IOException("No response");
+      }
+      int status = Integer.parseInt(statusLine.split(" ")[1]);
+
+      long length = -1;
+      boolean chunked = false;
+      String header;
+      while ((header = readLine()) != null && !header.isEmpty()) {
+        String lower = header.toLowerCase();
+        if (lower.startsWith("content-length:")) {
+          length = Long.parseLong(lower.substring("content-length:".length()).trim());
+        } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+          chunked = true;
+        } else if (lower.startsWith("connection:") && lower.contains("close")) {
+          closed = true;
+        }
+      }
+
+      if (chunked) {
+        long size;
+        while ((size = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0) {
+          skip(size);
+          readLine();
+        }
+        while ((header = readLine()) != null && !header.isEmpty()) {
+          // trailer fields
+        }
+      } else if (length >= 0) {
+        skip(length);
+      } else {
+        // no length: the body ends when the server closes the connection
+        while (in.read() >= 0) {
+          in.skip(Long.MAX_VALUE);
+        }
+        closed = true;
+      }
+      return status;
+    }
+
+    private void skip(long count) throws IOException {
+      while (count > 0) {
+        long skipped = in.skip(count);
+        if (skipped <= 0) {
+          if (in.read() < 0) {
+            throw new IOException("Response ended early");
+          }
+          skipped = 1;
+        }
+        count -= skipped;
+      }
+    }
+
+    private String readLine() throws IOException {
+      line.reset();
+      int b;
+      while ((b = in.read()) >= 0 && b != '\n') {
+        if (b != '\r') {
+          line.write(b);
+        }
+      }
+      if (b < 0 && line.size() == 0) {
+        return null;
+      }
+      return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing left to do with it
+      }
+    }
+  }
+}